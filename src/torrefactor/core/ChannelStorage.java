@@ -0,0 +1,143 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A FileStorage which reads and writes the files with positional
+ * FileChannel.read() and FileChannel.write(), without mapping them.
+ *
+ * The bytes of heap buffers go through direct buffers of BUFFER_SIZE bytes
+ * taken from a pool shared by all the ChannelStorages, so the JVM doesn't
+ * allocate a temporary direct buffer as large as each block.
+ */
+public class ChannelStorage extends FileStorage {
+    static final int BUFFER_SIZE = 1 << 18; // in bytes
+    static final int MAX_BUFFERS = 16;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFERS =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    public ChannelStorage (File[] files, long[] fileSizes,
+                           FileHandlePool handles) {
+        super(files, fileSizes, handles);
+    }
+
+    private static ByteBuffer getBuffer () {
+        ByteBuffer buffer = BUFFERS.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void releaseBuffer (ByteBuffer buffer) {
+        if (BUFFERS.size() < MAX_BUFFERS) {
+            BUFFERS.offer(buffer);
+        }
+    }
+
+    protected void readFile (int file, long position, ByteBuffer dst)
+    throws IOException {
+        if (dst.isDirect()) {
+            readFully(file, position, dst);
+            return;
+        }
+        ByteBuffer buffer = getBuffer();
+        try {
+            while (dst.hasRemaining()) {
+                buffer.clear();
+                buffer.limit(Math.min(buffer.capacity(), dst.remaining()));
+                readFully(file, position, buffer);
+                buffer.flip();
+                position += buffer.remaining();
+                dst.put(buffer);
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private void readFully (int file, long position, ByteBuffer dst)
+    throws IOException {
+        FileHandlePool.Handle handle = acquire(file);
+        try {
+            while (dst.hasRemaining()) {
+                int count = handle.channel().read(dst, position);
+                if (count < 0) {
+                    throw new EOFException("Position " + position
+                                           + " is past the end of "
+                                           + this.files[file]);
+                }
+                position += count;
+            }
+        } finally {
+            release(handle);
+        }
+    }
+
+    protected void writeFile (int file, long position, ByteBuffer src)
+    throws IOException {
+        if (src.isDirect()) {
+            writeFully(file, position, src);
+            return;
+        }
+        ByteBuffer buffer = getBuffer();
+        try {
+            int limit = src.limit();
+            while (src.hasRemaining()) {
+                int count = Math.min(buffer.capacity(), src.remaining());
+                buffer.clear();
+                src.limit(src.position() + count);
+                buffer.put(src);
+                src.limit(limit);
+                buffer.flip();
+                writeFully(file, position, buffer);
+                position += count;
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private void writeFully (int file, long position, ByteBuffer src)
+    throws IOException {
+        FileHandlePool.Handle handle = acquire(file);
+        try {
+            while (src.hasRemaining()) {
+                position += handle.channel().write(src, position);
+            }
+        } finally {
+            release(handle);
+        }
+    }
+}
@@ -69,6 +69,20 @@ public class DataBlockInfo {
         return this.length;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DataBlockInfo)) return false;
+        DataBlockInfo info = (DataBlockInfo) o;
+        return this.pieceIndex == info.pieceIndex
+               && this.offset == info.offset
+               && this.length == info.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return (this.pieceIndex * 31 + this.offset) * 31 + this.length;
+    }
+
     public String toString() {
         return "DataBlockInfo: index=" + pieceIndex + " offset=" + offset
                + " length=" + length;
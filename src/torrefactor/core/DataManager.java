@@ -27,37 +27,77 @@
 
 package torrefactor.core;
 
-import torrefactor.core.DataBlock;
 import torrefactor.util.*;
 
 import java.io.*;
 import java.nio.*;
-import java.nio.channels.*;
 import java.util.*;
 
 // TODO
-//  - set buffers limit so we cannot write past the block end.
 //  - Are we allowed to use package access for attributes ?
 
 /**
  * The DataManager is responsible for creating files and for
  * reading and writing blocks of data to them.
  *
- * Internally, this is implemented using MappedByteBuffer to
- * let the Operating System handle the disk I/O.
+ * The bytes are stored by a Storage chosen when the DataManager is
+ * created: by default the files are mapped in memory (see MappedStorage),
+ * they can also be accessed with positional reads and writes
+ * (see ChannelStorage) or the data can be kept in memory only
+ * (see MemoryStorage).
+ *
+ * The files are either allocated as they are written (sparse files) or
+ * allocated in full before the download (see setAllocation()), the files
+ * with a priority of 0 are then skipped.
+ *
+ * The blocks of a piece can also be kept in a write-back buffer until the
+ * piece is checked (see bufferPiece()), a valid piece is then written with
+ * one write per file and an invalid one never touches the disk.
  */
 public class DataManager implements Serializable {
     private static Logger LOG = new Logger();
     private File[]files;
     private long[] fileSizes;
-    private transient RandomAccessFile[] raFiles;
-    private transient FileChannel[] fileChannels;
+    // Priority of each file, 0 for the files which shouldn't be allocated
+    private int[] filePriorities;
     private long totalSize;
     private int piecesNumber;
     private int pieceLength;
+    // One of "mmap", "channel" or "memory", see createStorage()
+    private String storageType;
+    private transient Storage storage;
+    private transient FileHandlePool handles;
+    // Number of files opened by a DataManager which has its own
+    // FileHandlePool
+    static final int MAX_OPEN_FILES = 64;
+    // Write-back buffers of the pieces being downloaded, see bufferPiece()
+    private transient HashMap<Integer, byte[]> pieceBuffers;
+    private transient WriteBuffers writeBuffers;
 
+    /**
+     * Create a new DataManager mapping its files in memory, with its own
+     * FileHandlePool.
+     */
     public DataManager (List<Pair<File, Long>> _files ,int _pieceLength)
     throws java.io.FileNotFoundException, java.io.IOException {
+        this(_files, _pieceLength, "mmap",
+             new FileHandlePool(MAX_OPEN_FILES));
+    }
+
+    /**
+     * Create a new DataManager storing its data with the given storage.
+     *
+     * @param _files        the files of the torrent and their sizes
+     * @param _pieceLength  the length of the pieces
+     * @param storageType   "mmap", "channel" or "memory", see Storage
+     * @param handles       the FileHandlePool opening the files, usually
+     *                      FileHandlePool.instance()
+     */
+    public DataManager (List<Pair<File, Long>> _files, int _pieceLength,
+                        String storageType, FileHandlePool handles)
+    throws java.io.FileNotFoundException, java.io.IOException {
+        this.storageType = storageType;
+        this.handles = handles;
         setFilesAndSizes(_files);
         init(_pieceLength);
     }
@@ -65,32 +105,43 @@ public class DataManager implements Serializable {
     private void init (int pieceLength)
     throws java.io.FileNotFoundException, java.io.IOException {
         this.pieceLength = pieceLength;
-        this.raFiles = new RandomAccessFile[this.files.length];
-        this.fileChannels = new FileChannel[this.files.length];
+        this.pieceBuffers = new HashMap<Integer, byte[]>();
 
-        // Calculate total size, open each file, allocate disk space if
-        // necessary and get FileChannel.
         this.totalSize = 0;
         for (int i=0; i<this.fileSizes.length; i++) {
             this.totalSize += this.fileSizes[i];
-            File parent = this.files[i].getParentFile();
-            parent.mkdirs();
-            this.raFiles[i] = new RandomAccessFile(this.files[i], "rw");
-            if (this.raFiles[i].length() != this.fileSizes[i]) {
-                this.raFiles[i].setLength(this.fileSizes[i]);
-            }
-            this.fileChannels[i] = this.raFiles[i].getChannel();
-            LOG.debug(this, "Got channel for " + this.files[i]);
         }
         this.piecesNumber = (int) ( (this.totalSize - 1) / this.pieceLength) + 1;
+        this.storage = createStorage();
+    }
+
+    /**
+     * Creates the Storage of the type given to the constructor, the files
+     * are only opened when they are first read or written.
+     */
+    private Storage createStorage ()
+    throws IOException {
+        if ("channel".equals(this.storageType)) {
+            return new ChannelStorage(this.files, this.fileSizes,
+                                      this.handles);
+        } else if ("memory".equals(this.storageType)) {
+            return new MemoryStorage(this.totalSize);
+        } else if ("mmap".equals(this.storageType)) {
+            return new MappedStorage(this.files, this.fileSizes,
+                                     this.handles);
+        }
+        throw new IllegalArgumentException("Unknown storage: "
+                                           + this.storageType);
     }
 
     private void setFilesAndSizes (List<Pair<File, Long>> fpairs) {
         this.files = new File[fpairs.size()];
         this.fileSizes = new long[fpairs.size()];
+        this.filePriorities = new int[fpairs.size()];
         for (int i=0; i<fpairs.size(); i++) {
             this.files[i] = fpairs.get(i).first();
             this.fileSizes[i] = fpairs.get(i).second();
+            this.filePriorities[i] = 1;
         }
     }
 
@@ -98,6 +149,8 @@ public class DataManager implements Serializable {
         assert (files.length == sizes.length);
         this.files = files;
         this.fileSizes = sizes;
+        this.filePriorities = new int[files.length];
+        Arrays.fill(this.filePriorities, 1);
     }
 
     /**
@@ -107,6 +160,7 @@ public class DataManager implements Serializable {
     private void readObject(ObjectInputStream in)
     throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        this.handles = FileHandlePool.instance();
         init(this.pieceLength);
     }
 
@@ -122,87 +176,237 @@ public class DataManager implements Serializable {
         return this.totalSize;
     }
 
+    /**
+     * Returns true if some of the files already contained data when they
+     * were opened, their pieces may then be valid (see PieceRecheck).
+     */
+    public boolean hadData() {
+        return this.storage.hadData();
+    }
+
+    public int filesNumber() {
+        return this.files.length;
+    }
+
+    public synchronized int filePriority(int file) {
+        return this.filePriorities[file];
+    }
+
+    /**
+     * Sets the priority of the file, 0 to not allocate it (see
+     * Preallocator). The default priority is 1.
+     */
+    public synchronized void setFilePriority(int file, int priority) {
+        this.filePriorities[file] = priority;
+    }
+
+    /**
+     * Sets how the files are allocated when the data is stored in files:
+     * - "sparse": the files are given their size when they are opened and
+     *   the file system allocates their blocks as they are written
+     * - "full": the files grow as they are written and must be allocated
+     *   in full before the download (see needsAllocation())
+     */
+    public void setAllocation(String allocation) {
+        if (this.storage instanceof FileStorage) {
+            ((FileStorage) this.storage).setSparse(
+                    !"full".equals(allocation));
+        }
+    }
+
+    /**
+     * Returns true if some files with a priority other than 0 must be
+     * allocated by a Preallocator before any block is written.
+     */
+    public boolean needsAllocation() {
+        if (!(this.storage instanceof FileStorage)) {
+            return false;
+        }
+        FileStorage fileStorage = (FileStorage) this.storage;
+        if (fileStorage.isSparse()) {
+            return false;
+        }
+        for (int i=0; i<this.files.length; i++) {
+            if (filePriority(i) != 0
+                && fileStorage.initialLength(i) < this.fileSizes[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the Storage of the data, used for its statistics.
+     */
+    public Storage storage() {
+        return this.storage;
+    }
+
+    /**
+     * Reads dst.remaining() bytes of the data at the given position into
+     * dst, ignoring the write-back buffers.
+     */
+    public void read(long position, ByteBuffer dst)
+    throws IOException {
+        this.storage.read(position, dst);
+    }
+
+    /**
+     * Makes sure the blocks written so far are on the disk, the write-back
+     * buffers aren't written (see writePiece()).
+     */
+    public void flush()
+    throws IOException {
+        this.storage.flush();
+    }
+
+    /**
+     * Closes the files, the DataManager can't be used anymore. The
+     * write-back buffers left are dropped.
+     */
+    public void close()
+    throws IOException {
+        for (int piece: bufferedPieces()) {
+            dropPiece(piece);
+        }
+        this.storage.close();
+    }
+
+    /**
+     * Writes the block, to the write-back buffer of the piece if it has one.
+     */
     public void putBlock(int pieceNumber, int offset, byte[] data)
     throws IOException {
-        getDataBlock(pieceNumber, offset, data.length).put(data);
+        byte[] buffer = pieceBuffer(pieceNumber);
+        if (buffer != null) {
+            System.arraycopy(data, 0, buffer, offset, data.length);
+            return;
+        }
+        this.storage.write(position(pieceNumber, offset, data.length),
+                           ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Sets the memory the write-back buffers are taken from, usually
+     * WriteBuffers.instance() which is shared by all the torrents. Without
+     * it, the blocks are always written to the files right away.
+     */
+    public synchronized void setWriteBuffers(WriteBuffers writeBuffers) {
+        this.writeBuffers = writeBuffers;
+    }
+
+    /**
+     * Keeps the blocks of the piece in memory until writePiece() or
+     * dropPiece() is called, unless the WriteBuffers are full.
+     * This must be called before any block of the piece is written.
+     *
+     * @return true if the piece is buffered
+     */
+    public synchronized boolean bufferPiece(int pieceNumber) {
+        if (this.pieceBuffers.containsKey(pieceNumber)) {
+            return true;
+        }
+        if (this.writeBuffers == null) {
+            return false;
+        }
+        byte[] buffer = this.writeBuffers.get(this.pieceLength);
+        if (buffer == null) {
+            return false;
+        }
+        this.pieceBuffers.put(pieceNumber, buffer);
+        return true;
+    }
+
+    /**
+     * Returns the write-back buffer of the piece or null if it isn't
+     * buffered.
+     */
+    synchronized byte[] pieceBuffer(int pieceNumber) {
+        return this.pieceBuffers.get(pieceNumber);
+    }
+
+    /**
+     * Returns the pieces which have a write-back buffer.
+     */
+    public synchronized List<Integer> bufferedPieces() {
+        return new ArrayList<Integer>(this.pieceBuffers.keySet());
+    }
+
+    /**
+     * Writes the write-back buffer of the piece to the storage at once and
+     * releases it. Does nothing if the piece
+     * isn't buffered.
+     */
+    public void writePiece(int pieceNumber)
+    throws IOException {
+        byte[] buffer = pieceBuffer(pieceNumber);
+        if (buffer == null) {
+            return;
+        }
+        try {
+            long start = (long) pieceNumber * this.pieceLength;
+            int length = (int) Math.min(this.pieceLength,
+                                        this.totalSize - start);
+            this.storage.write(start, ByteBuffer.wrap(buffer, 0, length));
+        } finally {
+            dropPiece(pieceNumber);
+        }
+    }
+
+    /**
+     * Releases the write-back buffer of the piece without writing it.
+     */
+    public synchronized void dropPiece(int pieceNumber) {
+        byte[] buffer = this.pieceBuffers.remove(pieceNumber);
+        if (buffer != null) {
+            this.writeBuffers.release(buffer);
+        }
     }
 
     public byte[] getBlock(int pieceNumber, int offset, int length)
     throws IOException {
-        return getDataBlock(pieceNumber, offset, length).get();
+        byte[] block = new byte[length];
+        this.storage.read(position(pieceNumber, offset, length),
+                          ByteBuffer.wrap(block));
+        return block;
     }
 
+    /**
+     * Returns the regions of the files covering the given block, in order.
+     * Used to send the block without copying it (see FileRegion).
+     *
+     * @param pieceNumber   the index of the piece
+     * @param offset        the offset of the block within the piece
+     * @param length        the length of the block
+     * @return the regions, or null if the data isn't stored in files
+     * @throws IllegalArgumentException if the block is outside of the data
+     */
+    public FileRegion[] getFileRegions (int pieceNumber, int offset,
+            int length) {
+        return this.storage.fileRegions(
+                position(pieceNumber, offset, length), length);
+    }
 
-    //TODO: cache the most recent DataBlocks?
-    private DataBlock getDataBlock(int pieceNumber, int offset, int length)
-    throws java.io.IOException {
+    /**
+     * Returns the position of the block in the data of the torrent.
+     *
+     * @throws IllegalArgumentException if the block is outside of the data
+     */
+    private long position(int pieceNumber, int offset, int length) {
         long startOffset = (long) pieceNumber * (long) this.pieceLength + offset;
-        if (startOffset + length - 1 > this.totalSize) {
+        if (startOffset + length > this.totalSize) {
             throw new IllegalArgumentException
                 ("Block at offset " + startOffset
                  + " with length " + length + " is outside of torrent's"
                  + " data which has length " + this.totalSize);
         }
-
-        // Calculate the number of buffers necessary to map this block.
-        int numBuffers = 0;
-        int remainingLength = length;
-        long localOffset = startOffset;
-        LOG.debug(this, "Length of block: " + remainingLength);
-        for (int i=0; i < this.fileChannels.length; i++) {
-            if (localOffset < this.fileSizes[i]) {
-                numBuffers +=1;
-                //LOG.debug(this, "File: " + files[i] + " with size: "
-                //                         + this.fileChannels[i].size());
-                //LOG.debug(this, "localOffest: " + localOffset);
-                remainingLength -= this.fileSizes[i] - localOffset;
-                //LOG.debug(this, "Remaining length: " + remainingLength);
-                if (remainingLength <= 0) {
-                    break;
-                }
-            }
-            localOffset -= this.fileSizes[i];
-            if (localOffset < 0) {
-                localOffset = 0;
-            }
-        }
-
-        // Map the block
-        LOG.debug(this, "NumBuffers: " + numBuffers);
-        MappedByteBuffer[] buffers = new MappedByteBuffer[numBuffers];
-        remainingLength = length;
-        localOffset = startOffset;
-        for (int i=0; i < this.fileChannels.length; i++) {
-            if (localOffset < fileSizes[i]) {
-                long remaining =  this.fileChannels[i].size() - localOffset;
-                if (remaining >= remainingLength) {
-                    // End of block is in this channel.
-                    buffers[i] = fileChannels[i].map(
-                                                FileChannel.MapMode.READ_WRITE,
-                                                localOffset,
-                                                remainingLength);
-                    break;
-                }
-                // End of block is past this channel's end.
-                buffers[i] = fileChannels[i].map(FileChannel.MapMode.READ_WRITE,
-                                                 localOffset,
-                                                 remaining);
-                remainingLength -= remaining;
-            }
-            localOffset -= fileChannels[i].size();
-            if (localOffset < 0) {
-                localOffset = 0;
-            }
-        }
-
-        // return the block.
-        return new DataBlock(buffers, length, pieceNumber, offset);
+        return startOffset;
     }
 
     public byte[] getPiece(int number)
     throws java.io.IOException {
         // Does the piece exist?
-        long start = number * this.pieceLength;
+        long start = (long) number * this.pieceLength;
         if (start > this.totalSize) {
             throw new IllegalArgumentException(
                     "Piece number " + number + " starts past torrent's data.");
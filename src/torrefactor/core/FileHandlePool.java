@@ -0,0 +1,256 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * The open files of all the torrents. The files are only opened when they
+ * are first read or written, and at most capacity of them stay open: when
+ * another one is needed, the least recently used one is closed, so the
+ * number of file descriptors doesn't grow with the number of torrents.
+ *
+ * A file is opened for reading and writing, created with its parent
+ * directories and given its size if necessary. A Handle must be released
+ * once the I/O on its channel is done, an evicted file is only closed once
+ * it isn't used anymore.
+ */
+public class FileHandlePool {
+    private static Logger LOG = new Logger();
+    private static FileHandlePool instance;
+
+    private final int capacity;
+    private long opened = 0;
+    private long evicted = 0;
+    // In access order: the least recently used file comes first
+    private final LinkedHashMap<File, Handle> handles =
+        new LinkedHashMap<File, Handle>(16, 0.75f, true);
+
+    /**
+     * An open file.
+     */
+    public static final class Handle {
+        private final File file;
+        private final RandomAccessFile raFile;
+        private final FileChannel channel;
+        // Number of I/O in progress, see acquire()
+        private int users = 0;
+        private boolean evicted = false;
+
+        private Handle (File file, RandomAccessFile raFile) {
+            this.file = file;
+            this.raFile = raFile;
+            this.channel = raFile.getChannel();
+        }
+
+        /**
+         * Returns the channel of the file, it must not be used once the
+         * Handle has been released.
+         */
+        public FileChannel channel () {
+            return this.channel;
+        }
+    }
+
+    /**
+     * Returns the FileHandlePool shared by all the torrents, its capacity is
+     * given by the "MaxOpenFiles" property of the Config (at least 1).
+     */
+    public static synchronized FileHandlePool instance () {
+        if (instance == null) {
+            int capacity = Config.getConfig().getPropertyInt("MaxOpenFiles");
+            instance = new FileHandlePool(Math.max(capacity, 1));
+        }
+        return instance;
+    }
+
+    /**
+     * Create a new FileHandlePool.
+     *
+     * @param capacity  the maximum number of files left open
+     */
+    public FileHandlePool (int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "At least one file must be open");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the Handle of the file, opening it if necessary, and prevents
+     * it from being closed until release() is called. The file is opened
+     * outside of the lock of the pool, so that a slow open doesn't hold
+     * back the I/O on the other files.
+     *
+     * @param file  the file to open
+     * @param size  the size given to the file when it is opened, or -1 to
+     *              leave its length unchanged
+     * @throws IOException if the file couldn't be opened
+     */
+    public Handle acquire (File file, long size)
+    throws IOException {
+        Handle handle = acquireIfOpen(file);
+        if (handle != null) {
+            return handle;
+        }
+
+        Handle opened = open(file, size);
+        synchronized (this) {
+            handle = this.handles.get(file);
+            if (handle == null) {
+                handle = opened;
+                opened = null;
+                this.handles.put(file, handle);
+                this.opened++;
+                LOG.debug(this, "Opened " + file);
+                evict(this.capacity);
+            }
+            handle.users++;
+        }
+        if (opened != null) {
+            // Opened concurrently by another thread
+            close(opened);
+        }
+        return handle;
+    }
+
+    /**
+     * Opens the file, creating it with its parent directories if necessary.
+     */
+    private static Handle open (File file, long size)
+    throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+        try {
+            if (size >= 0 && raFile.length() != size) {
+                raFile.setLength(size);
+            }
+        } catch (IOException e) {
+            raFile.close();
+            throw e;
+        }
+        return new Handle(file, raFile);
+    }
+
+    /**
+     * Returns the Handle of the file if it is open, null otherwise. The
+     * Handle must be released like with acquire().
+     */
+    public synchronized Handle acquireIfOpen (File file) {
+        Handle handle = this.handles.get(file);
+        if (handle != null) {
+            handle.users++;
+        }
+        return handle;
+    }
+
+    /**
+     * Lets the file of the Handle be closed.
+     */
+    public synchronized void release (Handle handle) {
+        handle.users--;
+        if (handle.evicted && handle.users == 0) {
+            close(handle);
+        }
+    }
+
+    /**
+     * Closes the least recently used files until at most max are open.
+     */
+    private void evict (int max) {
+        Iterator<Handle> it = this.handles.values().iterator();
+        while (this.handles.size() > max && it.hasNext()) {
+            Handle handle = it.next();
+            it.remove();
+            this.evicted++;
+            LOG.debug(this, "Evicted " + handle.file);
+            handle.evicted = true;
+            if (handle.users == 0) {
+                close(handle);
+            }
+        }
+    }
+
+    private static void close (Handle handle) {
+        try {
+            handle.raFile.close();
+        } catch (IOException e) {
+            LOG.error("Could not close " + handle.file + ": "
+                      + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the file if it is open, once it isn't used anymore.
+     */
+    public synchronized void close (File file) {
+        Handle handle = this.handles.remove(file);
+        if (handle != null) {
+            handle.evicted = true;
+            if (handle.users == 0) {
+                close(handle);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of files currently open.
+     */
+    public synchronized int size () {
+        return this.handles.size();
+    }
+
+    /**
+     * Returns the number of files opened so far.
+     */
+    public synchronized long opened () {
+        return this.opened;
+    }
+
+    /**
+     * Returns the number of files closed so far to open other ones.
+     */
+    public synchronized long evicted () {
+        return this.evicted;
+    }
+
+    @Override
+    public synchronized String toString () {
+        return "FileHandlePool: " + this.handles.size() + "/" + this.capacity
+               + " files open, " + this.opened + " opened, " + this.evicted
+               + " evicted";
+    }
+}
@@ -0,0 +1,156 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A region of a file of the torrent, used to send a block to a peer straight
+ * from the file with FileChannel.transferTo() (see
+ * DataManager.getFileRegions()).
+ */
+public class FileRegion {
+    private final FileStorage storage;
+    private final int file;
+    private long position;
+    private long remaining;
+
+    /**
+     * Create a new FileRegion.
+     *
+     * @param storage   the FileStorage of the file, the file is opened
+     *                  through it for each transfer
+     * @param file      the index of the file in the storage
+     * @param position  the position of the region within the file
+     * @param length    the length of the region
+     */
+    public FileRegion (FileStorage storage, int file, long position,
+                       long length) {
+        this.storage = storage;
+        this.file = file;
+        this.position = position;
+        this.remaining = length;
+    }
+
+    /**
+     * Returns the number of bytes of this region which haven't been
+     * transferred yet.
+     */
+    public long remaining () {
+        return this.remaining;
+    }
+
+    /**
+     * Reads as much of the remaining bytes as dst can hold, without changing
+     * the position of the channel so that several threads can read the same
+     * file.
+     *
+     * @param dst   the buffer to read into
+     * @return the number of bytes read, -1 if the end of the file was reached
+     * @throws IOException if FileChannel.read() throws it
+     */
+    public int read (ByteBuffer dst)
+    throws IOException {
+        int limit = dst.limit();
+        if (dst.remaining() > this.remaining) {
+            dst.limit(dst.position() + (int) this.remaining);
+        }
+        int count;
+        FileHandlePool.Handle handle = this.storage.acquire(this.file);
+        try {
+            count = handle.channel().read(dst, this.position);
+        } finally {
+            dst.limit(limit);
+            this.storage.release(handle);
+        }
+        if (count > 0) {
+            this.position += count;
+            this.remaining -= count;
+        }
+        return count;
+    }
+
+    /**
+     * Writes as much of the remaining bytes of the region from src as it
+     * holds, without changing the position of the channel.
+     *
+     * @param src   the buffer to write from
+     * @return the number of bytes written
+     * @throws IOException if FileChannel.write() throws it
+     */
+    public int write (ByteBuffer src)
+    throws IOException {
+        int limit = src.limit();
+        if (src.remaining() > this.remaining) {
+            src.limit(src.position() + (int) this.remaining);
+        }
+        int count;
+        FileHandlePool.Handle handle = this.storage.acquire(this.file);
+        try {
+            count = handle.channel().write(src, this.position);
+        } finally {
+            src.limit(limit);
+            this.storage.release(handle);
+        }
+        this.position += count;
+        this.remaining -= count;
+        return count;
+    }
+
+    /**
+     * Transfers as much of the remaining bytes as target accepts. With a
+     * channel in non-blocking mode, this may transfer nothing.
+     *
+     * @param target    the channel to write to
+     * @return the number of bytes transferred
+     * @throws EOFException if the file is shorter than the region
+     * @throws IOException if FileChannel.transferTo() throws it
+     */
+    public long transferTo (WritableByteChannel target)
+    throws IOException {
+        long count;
+        FileHandlePool.Handle handle = this.storage.acquire(this.file);
+        try {
+            count = handle.channel().transferTo(this.position,
+                                                this.remaining, target);
+            // transferTo() also returns 0 at the end of the file, which
+            // would make the caller retry forever
+            if (count == 0 && this.position >= handle.channel().size()) {
+                throw new EOFException("Position " + this.position
+                                       + " is past the end of the file");
+            }
+        } finally {
+            this.storage.release(handle);
+        }
+        this.position += count;
+        this.remaining -= count;
+        return count;
+    }
+}
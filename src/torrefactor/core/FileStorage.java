@@ -0,0 +1,258 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Storage writing the data of a torrent in its files. The files are
+ * opened through the FileHandlePool when they are first read or written,
+ * which creates them and gives them their size, and may be closed again
+ * to open the files of other torrents. The subclasses decide how the bytes
+ * of each file are read and written.
+ *
+ * The file containing a position is found by a binary search over the
+ * offsets of the files in the data (see fileAt()), so a block only costs
+ * O(log(n)) plus the files it spans, even with many small files.
+ */
+public abstract class FileStorage implements Storage {
+    protected final File[] files;
+    protected final long[] fileSizes;
+    protected final FileHandlePool handles;
+    // Offset of each file in the data of the torrent, the last element is
+    // the total size
+    private final long[] fileOffsets;
+    // Length of each file when the storage was created
+    private final long[] initialLengths;
+    // If true, the files are given their size when they are opened,
+    // otherwise they grow as they are written, see setSparse()
+    private volatile boolean sparse = true;
+    private boolean hadData = false;
+    private final AtomicLong bytesRead = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+
+    /**
+     * Create a new FileStorage, the files are only opened when needed.
+     *
+     * @param files     the files of the torrent, in order
+     * @param fileSizes the sizes of the files
+     * @param handles   the FileHandlePool opening the files
+     */
+    public FileStorage (File[] files, long[] fileSizes,
+                        FileHandlePool handles) {
+        this.files = files;
+        this.fileSizes = fileSizes;
+        this.handles = handles;
+        this.fileOffsets = new long[files.length + 1];
+        this.initialLengths = new long[files.length];
+        for (int i=0; i<files.length; i++) {
+            this.fileOffsets[i + 1] = this.fileOffsets[i] + fileSizes[i];
+            this.initialLengths[i] = files[i].length();
+            if (this.initialLengths[i] > 0) {
+                this.hadData = true;
+            }
+        }
+    }
+
+    /**
+     * Sets whether the files are given their size as soon as they are
+     * opened, which lets the file system allocate their blocks as they are
+     * written (sparse files), or only grow as they are written or
+     * preallocated (see Preallocator).
+     */
+    public void setSparse (boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    public boolean isSparse () {
+        return this.sparse;
+    }
+
+    /**
+     * Returns the length the file had when the storage was created.
+     */
+    public long initialLength (int file) {
+        return this.initialLengths[file];
+    }
+
+    /**
+     * Returns the Handle of the file, opening it if necessary. It must be
+     * released with release() once the I/O is done.
+     */
+    protected FileHandlePool.Handle acquire (int file)
+    throws IOException {
+        return this.handles.acquire(this.files[file],
+                                    this.sparse ? this.fileSizes[file] : -1);
+    }
+
+    protected void release (FileHandlePool.Handle handle) {
+        this.handles.release(handle);
+    }
+
+    /**
+     * Returns the index of the file containing the byte at position, the
+     * empty files are skipped. Returns files.length if position is past the
+     * end of the data.
+     */
+    protected int fileAt (long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: "
+                                               + position);
+        }
+        // Find the last file starting at or before position: the empty
+        // files start where the next one does, so they are never chosen
+        int low = 0;
+        int high = this.files.length;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (this.fileOffsets[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads dst.remaining() bytes of the file at position into dst.
+     */
+    protected abstract void readFile (int file, long position,
+                                      ByteBuffer dst)
+    throws IOException;
+
+    /**
+     * Writes the src.remaining() bytes of src to the file at position.
+     */
+    protected abstract void writeFile (int file, long position,
+                                       ByteBuffer src)
+    throws IOException;
+
+    public void read (long position, ByteBuffer dst)
+    throws IOException {
+        this.bytesRead.addAndGet(dst.remaining());
+        copy(position, dst, false);
+    }
+
+    public void write (long position, ByteBuffer src)
+    throws IOException {
+        this.bytesWritten.addAndGet(src.remaining());
+        copy(position, src, true);
+    }
+
+    /**
+     * Splits the bytes between the files they belong to.
+     */
+    private void copy (long position, ByteBuffer buffer, boolean write)
+    throws IOException {
+        int limit = buffer.limit();
+        int first = fileAt(position);
+        long localOffset = position - this.fileOffsets[first];
+        try {
+            for (int i=first; i < this.files.length
+                              && buffer.position() < limit; i++) {
+                if (localOffset >= this.fileSizes[i]) {
+                    continue;
+                }
+                int count = (int) Math.min(limit - buffer.position(),
+                                           this.fileSizes[i] - localOffset);
+                buffer.limit(buffer.position() + count);
+                if (write) {
+                    writeFile(i, localOffset, buffer);
+                } else {
+                    readFile(i, localOffset, buffer);
+                }
+                localOffset = 0;
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+        if (buffer.hasRemaining()) {
+            throw new EOFException("Bytes at " + position
+                                   + " are past the end of the files");
+        }
+    }
+
+    public FileRegion[] fileRegions (long position, long length) {
+        ArrayList<FileRegion> regions = new ArrayList<FileRegion>();
+        long remainingLength = length;
+        int first = fileAt(position);
+        long localOffset = position - this.fileOffsets[first];
+        for (int i=first; i < this.files.length && remainingLength > 0;
+             i++) {
+            if (localOffset >= this.fileSizes[i]) {
+                continue;
+            }
+            long regionLength = Math.min(remainingLength,
+                                         this.fileSizes[i] - localOffset);
+            regions.add(new FileRegion(this, i, localOffset, regionLength));
+            remainingLength -= regionLength;
+            localOffset = 0;
+        }
+        return regions.toArray(new FileRegion[regions.size()]);
+    }
+
+    public boolean hadData () {
+        return this.hadData;
+    }
+
+    /**
+     * Flushes the files which are open, the other ones have been closed
+     * and their data left to the Operating System.
+     */
+    public void flush ()
+    throws IOException {
+        for (File file: this.files) {
+            FileHandlePool.Handle handle = this.handles.acquireIfOpen(file);
+            if (handle == null) continue;
+            try {
+                handle.channel().force(false);
+            } finally {
+                this.handles.release(handle);
+            }
+        }
+    }
+
+    public void close ()
+    throws IOException {
+        for (File file: this.files) {
+            this.handles.close(file);
+        }
+    }
+
+    public long bytesRead () {
+        return this.bytesRead.get();
+    }
+
+    public long bytesWritten () {
+        return this.bytesWritten.get();
+    }
+}
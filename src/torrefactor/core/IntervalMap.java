@@ -27,75 +27,124 @@
 
 package torrefactor.core;
 
-import torrefactor.core.*;
-import torrefactor.util.Pair;
-
 import java.io.*;
 import java.util.*;
-import java.security.*;
+import java.util.concurrent.locks.StampedLock;
 
 /**
- * A map where keys are beginning of non-overlapping intervals and values are
- * end.
- *
- * To prevent overlapping, put() is not available, instead use addInterval.
- *
- * Implemented with a TreeMap to get O(log(n)) lookup, insert, remove, previous
- * and successor
+ * A set of non-overlapping intervals of longs, each interval is represented
+ * by its beginning and its end (included).
  *
- * Note that this class is NOT thread-safe, thread-safe functions are marked as
- * such.
+ * The intervals are stored sorted in two arrays of primitive longs (one for
+ * the beginnings, one for the ends), adjacent or overlapping intervals are
+ * merged. Finding the interval containing a point is a binary search in
+ * O(log(n)) which doesn't allocate anything, adding or removing intervals
+ * needs to shift the following ones in O(n) in the worst case but this is
+ * only a copy of contiguous memory.
  *
- * To achieve thread-safeness, you will need to put calls to not
- * thread-safe functions in a synchronized block where the synchronization
- * object is the instance of this class you're using.
- *
- * JAVADOC BUG: javadoc 1.6.0_18 crashes on this class because of
- * "extends TreeMap&lt;Long, Long&gt;" removing the generic make it work again.
+ * All the functions are thread-safe: they're guarded by a StampedLock,
+ * snapshot() first tries an optimistic read which doesn't block the
+ * writers.
  */
-public class IntervalMap extends TreeMap<Long, Long> {
+public class IntervalMap implements Serializable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] begins = new long[INITIAL_CAPACITY];
+    private long[] ends = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    private transient StampedLock lock = new StampedLock();
 
     /**
-     * Time Complexity:
-     * - Average case: O(log(n))
-     * - Worst case: O(n*log(n))
-     *
-     * This function is thread-safe.
+     * Returns the index of the first interval which ends at or after point,
+     * size if there's none.
      */
-    public synchronized boolean addInterval(long begin, int length) {
-        long end =  begin + length - 1;
-        Map.Entry<Long, Long> interval = floorEntry(end + 1);
-        if (interval == null) {
-            // No interval beginning before our superior born, so no overlap
-            // possible
-            super.put(begin, end);
-            return true;
+    private int firstEndingFrom(long point) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.ends[mid] < point) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        if (interval.getKey() <= begin && interval.getValue() >= end) {
-            //We're included in an interval, nothing to add
-            return false;
+        return low;
+    }
+
+    /**
+     * Returns the index of the last interval which begins at or before point,
+     * -1 if there's none.
+     */
+    private int lastBeginningUpTo(long point) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.begins[mid] <= point) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Replaces the intervals from index first to last (included) by count
+     * intervals, the new intervals are left uninitialized.
+     */
+    private void replace(int first, int last, int count) {
+        int removed = last - first + 1;
+        int newSize = this.size - removed + count;
+        if (newSize > this.begins.length) {
+            int capacity = Math.max(newSize, 2 * this.begins.length);
+            this.begins = Arrays.copyOf(this.begins, capacity);
+            this.ends = Arrays.copyOf(this.ends, capacity);
         }
-        if (interval.getValue() + 1 >= begin) {
-            // If our right side overlaps with an interval B, extend our
-            // superior born to B's
-            end = Math.max(end, interval.getValue());
-            // Discard all intervals contained in our interval
-            while (interval != null && interval.getKey() > begin) {
-                remove(interval.getKey());
-                interval = lowerEntry(interval.getKey());
+        int tail = this.size - last - 1;
+        System.arraycopy(this.begins, last + 1,
+                         this.begins, first + count, tail);
+        System.arraycopy(this.ends, last + 1,
+                         this.ends, first + count, tail);
+        this.size = newSize;
+    }
+
+    /**
+     * Add the interval between begin and begin + length - 1 and merge it
+     * with the intervals it overlaps or is adjacent to.
+     * Returns false if the interval was already contained in the map.
+     *
+     * Time Complexity:
+     * - Average case: O(log(n))
+     * - Worst case: O(n)
+     */
+    public boolean addInterval(long begin, long length) {
+        long stamp = this.lock.writeLock();
+        try {
+            long end = begin + length - 1;
+            // Intervals overlapping with or adjacent to ours
+            int first = firstEndingFrom(begin - 1);
+            int last = lastBeginningUpTo(end + 1);
+            if (first == last && this.begins[first] <= begin
+                && this.ends[first] >= end) {
+                //We're included in an interval, nothing to add
+                return false;
             }
-            // If our left side overlaps with or is adjacent to an interval B,
-            // extend B's superior born to ours
-            if (interval != null && interval.getValue() + 1 >= begin &&
-                    interval.getValue() <= end) {
-                super.put(interval.getKey(), end);
-                return true;
+
+            if (first > last) {
+                replace(first, first - 1, 1);
+            } else {
+                begin = Math.min(begin, this.begins[first]);
+                end = Math.max(end, this.ends[last]);
+                replace(first, last, 1);
             }
+            this.begins[first] = begin;
+            this.ends[first] = end;
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
         }
-        // The interval before our left side doesn't overlap with us or is
-        // adjacent to us
-        super.put(begin, end);
-        return true;
     }
 
     /**
@@ -104,52 +153,59 @@ public class IntervalMap extends TreeMap<Long, Long> {
      *
      * Time Complexity:
      * - Average case: O(log(n))
-     * - Worst case: O(n*log(n))
-     *
-     * This function is thread-safe.
+     * - Worst case: O(n)
      */
-    public synchronized boolean removeIntervals(long begin, int length) {
-        long end = begin + length - 1;
-        Map.Entry<Long, Long> interval = floorEntry(end);
-        if (interval == null || interval.getValue() < begin) {
-            return false;
-        }
-        if (interval.getValue() > end) {
-            super.put(end + 1, interval.getValue());
-        }
-        while (interval != null && interval.getKey() >= begin) {
-            remove(interval.getKey());
-            interval = lowerEntry(interval.getKey());
-        }
-        if (interval != null) {
-            super.put(interval.getKey(), begin - 1);
+    public boolean removeIntervals(long begin, long length) {
+        long stamp = this.lock.writeLock();
+        try {
+            long end = begin + length - 1;
+            int first = firstEndingFrom(begin);
+            int last = lastBeginningUpTo(end);
+            if (first > last) {
+                return false;
+            }
+
+            long leftBegin = this.begins[first];
+            long rightEnd = this.ends[last];
+            int count = 0;
+            if (leftBegin < begin) count++;
+            if (rightEnd > end) count++;
+
+            replace(first, last, count);
+            int i = first;
+            if (leftBegin < begin) {
+                this.begins[i] = leftBegin;
+                this.ends[i] = begin - 1;
+                i++;
+            }
+            if (rightEnd > end) {
+                this.begins[i] = end + 1;
+                this.ends[i] = rightEnd;
+            }
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
         }
-        return true;
     }
 
     /**
-     * Return the first point in the interval between
-     * begin and end that is not contained in any interval.
+     * Return the first point from point (included) that is not contained in
+     * any interval.
      *
      * Time Complexity:
-     * - Average case: O(log(n))
-     * - Worst case: O(n*log(n))
-     *
-     * This function is thread-safe.
+     * - Worst case: O(log(n))
      */
-    public Long nextFreePoint(long point) {
-        Map.Entry<Long, Long> interval = null;
-        synchronized (this) {
-            interval = floorEntry(point);
-        }
-        if (interval == null) {
-            return point;
-        }
-        long end = interval.getValue();
-        if (point > end) {
-            return point;
+    public long nextFreePoint(long point) {
+        long stamp = this.lock.readLock();
+        try {
+            int i = lastBeginningUpTo(point);
+            if (i < 0 || this.ends[i] < point) {
+                return point;
+            }
+            return this.ends[i] + 1;
+        } finally {
+            this.lock.unlockRead(stamp);
         }
-        return end + 1;
     }
 
     /**
@@ -159,29 +215,126 @@ public class IntervalMap extends TreeMap<Long, Long> {
      *
      * Time Complexity:
      * - Worst case: O(log(n))
+     */
+    public boolean containsInterval(long begin, long length) {
+        long stamp = this.lock.readLock();
+        try {
+            int i = lastBeginningUpTo(begin);
+            return i >= 0 && this.ends[i] >= begin + length - 1;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns whether or not some point between begin and
+     * begin + length - 1 is contained in an interval of the map.
      *
-     * This function is thread-safe.
+     * Time Complexity:
+     * - Worst case: O(log(n))
      */
-    public boolean containsInterval(long begin, int length) {
-        Map.Entry<Long, Long> interval = null;
-        synchronized (this) {
-            interval = floorEntry(begin);
+    public boolean intersects(long begin, long length) {
+        long stamp = this.lock.readLock();
+        try {
+            int i = lastBeginningUpTo(begin + length - 1);
+            return i >= 0 && this.ends[i] >= begin;
+        } finally {
+            this.lock.unlockRead(stamp);
         }
-        long end = begin + length - 1;
-        if (interval == null || interval.getValue() < end
-            || (interval.getValue() - begin + 1) < length) {
-            return false;
+    }
+
+    /**
+     * Returns the end of the interval beginning at begin or null if there's
+     * no such interval.
+     */
+    public Long get(long begin) {
+        long stamp = this.lock.readLock();
+        try {
+            int i = lastBeginningUpTo(begin);
+            if (i < 0 || this.begins[i] != begin) {
+                return null;
+            }
+            return this.ends[i];
+        } finally {
+            this.lock.unlockRead(stamp);
         }
-        return true;
     }
 
-    public Long put(Long key, Long value)
-    throws UnsupportedOperationException {
-        throw new UnsupportedOperationException();
+    /**
+     * Returns the number of intervals in the map.
+     */
+    public int size() {
+        long stamp = this.lock.readLock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns a copy of the intervals: the beginning of the i-th interval is
+     * at index 2*i and its end at index 2*i + 1.
+     */
+    public long[] snapshot() {
+        // Optimistic read first, the UI doesn't hold back putBlock()
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            long[] copy = copy(this.begins, this.ends, this.size);
+            if (this.lock.validate(stamp)) {
+                return copy;
+            }
+        }
+        stamp = this.lock.readLock();
+        try {
+            return copy(this.begins, this.ends, this.size);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies the intervals for snapshot(), the arrays and size may be
+     * inconsistent if they're read while the map is modified, the copy is
+     * then thrown away.
+     */
+    private static long[] copy(long[] begins, long[] ends, int size) {
+        size = Math.min(size, Math.min(begins.length, ends.length));
+        long[] copy = new long[2*size];
+        for (int i = 0; i < size; i++) {
+            copy[2*i] = begins[i];
+            copy[2*i + 1] = ends[i];
+        }
+        return copy;
+    }
+
+    public String toString() {
+        long stamp = this.lock.readLock();
+        try {
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < this.size; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(this.begins[i]).append('=').append(this.ends[i]);
+            }
+            return sb.append('}').toString();
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out)
+    throws IOException {
+        long stamp = this.lock.readLock();
+        try {
+            out.defaultWriteObject();
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
     }
 
-    public void putAll(Map<? extends Long, ? extends Long> m)
-    throws UnsupportedOperationException {
-        throw new UnsupportedOperationException();
+    private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.lock = new StampedLock();
     }
 }
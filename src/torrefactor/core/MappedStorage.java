@@ -0,0 +1,72 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A FileStorage which maps the files in memory to let the Operating System
+ * handle the disk I/O. The files are mapped in windows reused by the
+ * following blocks, see MappingCache.
+ */
+public class MappedStorage extends FileStorage {
+    // Maximum number of windows of MappingCache.WINDOW_SIZE mapped at the
+    // same time
+    static final int MAX_WINDOWS = 8;
+
+    private final MappingCache mappings;
+
+    public MappedStorage (File[] files, long[] fileSizes,
+                          FileHandlePool handles) {
+        super(files, fileSizes, handles);
+        this.mappings = new MappingCache(this, MAX_WINDOWS);
+    }
+
+    protected void readFile (int file, long position, ByteBuffer dst)
+    throws IOException {
+        this.mappings.read(file, position, dst);
+    }
+
+    protected void writeFile (int file, long position, ByteBuffer src)
+    throws IOException {
+        this.mappings.write(file, position, src);
+    }
+
+    public void flush ()
+    throws IOException {
+        this.mappings.force();
+        super.flush();
+    }
+
+    public void close ()
+    throws IOException {
+        this.mappings.clear();
+        super.close();
+    }
+}
@@ -0,0 +1,239 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.MappedBuffers;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps the files of a DataManager in windows of WINDOW_SIZE bytes aligned
+ * on WINDOW_SIZE, which are reused by the following reads and writes
+ * instead of mapping each block.
+ *
+ * At most maxWindows windows are mapped: when another one is needed, the
+ * least recently used one is unmapped right away (see MappedBuffers) rather
+ * than left to the garbage collector. A window is only unmapped once the
+ * copies from or to it are done.
+ */
+public class MappingCache {
+    static final long WINDOW_SIZE = 1 << 26; // in bytes
+
+    // Number of windows currently mapped by all the MappingCaches
+    private static final AtomicInteger liveMappings = new AtomicInteger(0);
+
+    private final FileStorage storage;
+    private final long[] fileSizes;
+    private final int maxWindows;
+    // In access order: the least recently used window comes first
+    private final LinkedHashMap<Long, Window> windows =
+        new LinkedHashMap<Long, Window>(16, 0.75f, true);
+
+    /**
+     * A mapped window of a file.
+     */
+    private static final class Window {
+        final MappedByteBuffer buffer;
+        final long position;
+        // Number of copies in progress, see acquire()
+        int users = 0;
+        boolean evicted = false;
+
+        Window (MappedByteBuffer buffer, long position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Create a new MappingCache.
+     *
+     * @param storage       the FileStorage of the files, used to open them
+     *                      to map them (see FileStorage.acquire()), they
+     *                      can be closed once mapped
+     * @param maxWindows    the maximum number of windows mapped at the same
+     *                      time
+     */
+    public MappingCache (FileStorage storage, int maxWindows) {
+        if (maxWindows < 1) {
+            throw new IllegalArgumentException(
+                    "At least one window must be mapped");
+        }
+        this.storage = storage;
+        this.fileSizes = storage.fileSizes;
+        this.maxWindows = maxWindows;
+    }
+
+    /**
+     * Writes the src.remaining() bytes of src to the file at position.
+     * The bytes must be inside the file.
+     */
+    public void write (int file, long position, ByteBuffer src)
+    throws IOException {
+        copy(file, position, src, true);
+    }
+
+    /**
+     * Reads dst.remaining() bytes of the file at position into dst.
+     * The bytes must be inside the file.
+     */
+    public void read (int file, long position, ByteBuffer dst)
+    throws IOException {
+        copy(file, position, dst, false);
+    }
+
+    private void copy (int file, long position, ByteBuffer buffer,
+                       boolean write)
+    throws IOException {
+        int length = buffer.remaining();
+        if (position < 0 || position + length > this.fileSizes[file]) {
+            throw new IllegalArgumentException("Bytes at " + position
+                    + " with length " + length + " are outside of file "
+                    + file + " which has length " + this.fileSizes[file]);
+        }
+        int limit = buffer.limit();
+        try {
+            while (buffer.hasRemaining()) {
+                Window window = acquire(file, position / WINDOW_SIZE);
+                try {
+                    int windowOffset = (int) (position - window.position);
+                    int count = Math.min(buffer.remaining(),
+                            window.buffer.capacity() - windowOffset);
+                    // Each copy has its own position
+                    ByteBuffer mapped = window.buffer.duplicate();
+                    mapped.position(windowOffset);
+                    mapped.limit(windowOffset + count);
+                    buffer.limit(buffer.position() + count);
+                    if (write) {
+                        mapped.put(buffer);
+                    } else {
+                        buffer.put(mapped);
+                    }
+                    buffer.limit(limit);
+                    position += count;
+                } finally {
+                    release(window);
+                }
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * Returns the window of the file with the given index, mapping it if
+     * necessary, and prevents it from being unmapped until release() is
+     * called.
+     */
+    private synchronized Window acquire (int file, long index)
+    throws IOException {
+        Long key = ((long) file << 40) | index;
+        Window window = this.windows.get(key);
+        if (window == null) {
+            long position = index * WINDOW_SIZE;
+            long size = Math.min(WINDOW_SIZE,
+                                 this.fileSizes[file] - position);
+            MappedByteBuffer buffer;
+            FileHandlePool.Handle handle = this.storage.acquire(file);
+            try {
+                buffer = handle.channel().map(
+                        FileChannel.MapMode.READ_WRITE, position, size);
+            } finally {
+                this.storage.release(handle);
+            }
+            liveMappings.incrementAndGet();
+            window = new Window(buffer, position);
+            this.windows.put(key, window);
+            evict(this.maxWindows);
+        }
+        window.users++;
+        return window;
+    }
+
+    private synchronized void release (Window window) {
+        window.users--;
+        if (window.evicted && window.users == 0) {
+            unmap(window);
+        }
+    }
+
+    /**
+     * Evicts the least recently used windows until at most max are left.
+     */
+    private void evict (int max) {
+        Iterator<Window> it = this.windows.values().iterator();
+        while (this.windows.size() > max && it.hasNext()) {
+            Window window = it.next();
+            it.remove();
+            window.evicted = true;
+            if (window.users == 0) {
+                unmap(window);
+            }
+        }
+    }
+
+    private static void unmap (Window window) {
+        MappedBuffers.unmap(window.buffer);
+        liveMappings.decrementAndGet();
+    }
+
+    /**
+     * Writes the changes made to the mapped windows to the disk.
+     */
+    public synchronized void force () {
+        for (Window window: this.windows.values()) {
+            window.buffer.force();
+        }
+    }
+
+    /**
+     * Unmaps all the windows, they are mapped again if needed.
+     */
+    public synchronized void clear () {
+        evict(0);
+    }
+
+    /**
+     * Returns the number of windows mapped by this MappingCache.
+     */
+    public synchronized int size () {
+        return this.windows.size();
+    }
+
+    /**
+     * Returns the number of windows currently mapped by all the
+     * MappingCaches, including the evicted ones still in use.
+     */
+    public static int liveMappings () {
+        return liveMappings.get();
+    }
+}
@@ -0,0 +1,131 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Storage keeping the data of a torrent in memory only, used to measure
+ * the rest of the client without the disk and in tests.
+ *
+ * The data is stored in chunks of CHUNK_SIZE bytes allocated when they are
+ * first written, the bytes never written are read as zeros.
+ */
+public class MemoryStorage implements Storage {
+    static final int CHUNK_SIZE = 1 << 20; // in bytes
+
+    private final long size;
+    private final byte[][] chunks;
+    private final AtomicLong bytesRead = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+
+    /**
+     * Create a new MemoryStorage.
+     *
+     * @param size  the size of the data of the torrent
+     */
+    public MemoryStorage (long size) {
+        this.size = size;
+        this.chunks = new byte[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)][];
+    }
+
+    /**
+     * Returns the chunk with the given index, allocating it if create is
+     * true. Returns null if the chunk doesn't exist and create is false.
+     */
+    private synchronized byte[] chunk (int index, boolean create) {
+        if (this.chunks[index] == null && create) {
+            this.chunks[index] = new byte[CHUNK_SIZE];
+        }
+        return this.chunks[index];
+    }
+
+    private void checkBounds (long position, int length)
+    throws IOException {
+        if (position < 0 || position + length > this.size) {
+            throw new EOFException("Bytes at " + position + " with length "
+                                   + length + " are outside of the data");
+        }
+    }
+
+    public void read (long position, ByteBuffer dst)
+    throws IOException {
+        checkBounds(position, dst.remaining());
+        this.bytesRead.addAndGet(dst.remaining());
+        while (dst.hasRemaining()) {
+            int offset = (int) (position % CHUNK_SIZE);
+            int count = Math.min(dst.remaining(), CHUNK_SIZE - offset);
+            byte[] chunk = chunk((int) (position / CHUNK_SIZE), false);
+            if (chunk != null) {
+                dst.put(chunk, offset, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    dst.put((byte) 0);
+                }
+            }
+            position += count;
+        }
+    }
+
+    public void write (long position, ByteBuffer src)
+    throws IOException {
+        checkBounds(position, src.remaining());
+        this.bytesWritten.addAndGet(src.remaining());
+        while (src.hasRemaining()) {
+            int offset = (int) (position % CHUNK_SIZE);
+            int count = Math.min(src.remaining(), CHUNK_SIZE - offset);
+            byte[] chunk = chunk((int) (position / CHUNK_SIZE), true);
+            src.get(chunk, offset, count);
+            position += count;
+        }
+    }
+
+    public FileRegion[] fileRegions (long position, long length) {
+        return null;
+    }
+
+    public boolean hadData () {
+        return false;
+    }
+
+    public void flush () {
+    }
+
+    public void close () {
+    }
+
+    public long bytesRead () {
+        return this.bytesRead.get();
+    }
+
+    public long bytesWritten () {
+        return this.bytesWritten.get();
+    }
+}
@@ -34,44 +34,87 @@ import torrefactor.util.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
 import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a Bittorrent peer.
+ *
+ * A peer is either driven by a PeerEventLoop or runs in its own thread (see
+ * start()). In the latter case, run() blocks on reading the connection and a
+ * second thread writes what is queued for the peer (see writeLoop()). These
+ * threads are virtual threads when the "VirtualThreads" property is set.
  */
 public class Peer implements Runnable, PeerConnectionListener  {
     private final Logger LOG = new Logger();
     private static Config CONF = Config.getConfig();
 
     static final int PEER_TIMEOUT =  2*60*1000; // in ms
-    static final int SLEEP_DELAY = 10; // in ms
     static final int MAX_REQUEST_LENGTH = 128*1024; //128KB as per spec
+    // Don't serve more requests while more than this is waiting to be
+    // written (in non-blocking mode)
+    static final int MAX_PENDING_BYTES = 128*1024; // in bytes
 
     /** The bitfield of this peer*/
-    byte[] bitfield;
+    volatile Bitfield bitfield;
+
+    /**
+     * True while the pieces of the bitfield are counted in the availability
+     * of the pieces (see PieceManager.addPeerBitfield()). Guarded by the lock
+     * of this peer.
+     */
+    private boolean availabilityCounted = false;
+
+    /**
+     * Number of pieces this peer has that we don't have, it is interesting
+     * as long as this isn't 0. Guarded by the lock of this peer.
+     */
+    private int missingPieces = 0;
 
     /** The peer id of this peer*/
     byte[] id;
 
     /** 
-     * This LinkedList contains message which should be send as soon as
+     * This queue contains message which should be send as soon as
      * possible to the peer.
      * */
-    private LinkedList<Message> msgOutQueue = new LinkedList<Message>();
+    private Queue<Message> msgOutQueue = new ConcurrentLinkedQueue<Message>();
 
     /**
-     * This LinkedList contains the requests made by the peer.
+     * This queue contains the requests made by the peer.
      */
-    private LinkedList<DataBlockInfo> peerRequestQueue =
-        new LinkedList<DataBlockInfo>();
+    private Queue<DataBlockInfo> peerRequestQueue =
+        new ConcurrentLinkedQueue<DataBlockInfo>();
 
     /**
-     * This Linkedlist contains our request to send to the peer.
+     * This queue contains our request to send to the peer.
      */
-    private LinkedList<DataBlockInfo> ownRequestQueue =
-        new LinkedList<DataBlockInfo>();
+    private Queue<DataBlockInfo> ownRequestQueue =
+        new ConcurrentLinkedQueue<DataBlockInfo>();
+
+    /**
+     * The requests sent to the peer for which we didn't get the piece yet,
+     * with the time (System.nanoTime()) they were sent at. Together with
+     * ownRequestQueue, it is the request window of the peer (see
+     * requestBlocks()).
+     */
+    private Map<DataBlockInfo, Long> outstandingRequests =
+        new ConcurrentHashMap<DataBlockInfo, Long>();
+    private RequestWindow requestWindow =
+        new RequestWindow(PieceManager.BLOCK_SIZE);
+    // The last request sent while outstandingRequests was empty, its
+    // round-trip time doesn't include the delivery of other blocks (see
+    // RequestWindow)
+    private volatile DataBlockInfo unqueuedRequest;
 
     private volatile boolean isValid = true;
 
@@ -91,6 +134,21 @@ public class Peer implements Runnable, PeerConnectionListener  {
     private volatile boolean isInteresting = false;
     private volatile boolean isInterestedInUs = false;
 
+    // Set by wakeup() when something was queued for the peer.
+    private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // When the peer runs in its own threads, the writer waits on
+    // flushCondition. A lock is used rather than a monitor so that waiting
+    // doesn't pin the carrier of a virtual thread.
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Condition flushCondition = this.flushLock.newCondition();
+    private volatile boolean handshakeDone = false;
+
+    // Used when the peer is driven by a PeerEventLoop
+    private volatile PeerEventLoop eventLoop;
+    private boolean initiated;
+    private long connectTime;
+    private long lastReceived;
+    private long lastKeepAlive;
 
 
     /**
@@ -99,12 +157,16 @@ public class Peer implements Runnable, PeerConnectionListener  {
      * @param address    the InetAddress of the peer
      * @param port       the port where the peer is listening
      * @param torrent    the torrent to use with this connection
+     * @throws IOException if the connection couldn't be created
      */
-    public Peer (InetAddress address, int port, Torrent torrent) {
+    public Peer (InetAddress address, int port, Torrent torrent)
+    throws IOException {
         this.address = address;
         this.port = port;
         this.torrent = torrent;
-        this.bitfield = new byte[this.torrent.pieceManager.bitfield.length];
+        this.bitfield =
+            new Bitfield(this.torrent.pieceManager.piecesNumber());
+        this.initiated = true;
         LOG.setHeader(this.toString());
 
         this.connection = new PeerConnection(address, port, this);
@@ -114,36 +176,64 @@ public class Peer implements Runnable, PeerConnectionListener  {
     /**
      * Create a new peer
      *
-     * @param socket    the socket where the peer is connected
+     * @param channel   the channel where the peer is connected
      */
-    public Peer (Socket socket) {
-        this.address = socket.getInetAddress();
-        this.port = socket.getPort();
+    public Peer (SocketChannel channel) {
+        this.address = channel.socket().getInetAddress();
+        this.port = channel.socket().getPort();
         this.torrent = null;
         this.bitfield = null;
+        this.initiated = false;
         LOG.setHeader(this.toString());
 
-        this.connection = new PeerConnection(socket, this);
+        this.connection = new PeerConnection(channel, this);
+    }
+
+    /**
+     * Start the peer: it is registered with a PeerEventLoop if they are
+     * enabled, otherwise a new thread is started (see Threads).
+     *
+     * @throws IOException if the event loops couldn't be started
+     */
+    public void start ()
+    throws IOException {
+        if (!PeerEventLoop.isEnabled()) {
+            Threads.start(this, toString());
+            return;
+        }
+
+        if (this.torrent != null) {
+            this.eventLoop = PeerEventLoop.forTorrent(this.torrent);
+        } else {
+            this.eventLoop = PeerEventLoop.next();
+        }
+        this.eventLoop.register(this);
+    }
+
+    /**
+     * Returns the reserved bytes we send in our handshake.
+     */
+    private static byte[] ownReserved () {
+        byte reserved[] = { 0, 0, 0, 0, 0, 0, 0, 0};
+        if (CONF.getPropertyBoolean("DHT")) {
+            reserved[7] = 1;
+        }
+        return reserved;
     }
 
 
     /**
-     * The main loop of the peer.
-     * The main loop is responsible to send and receive the messages to/from
-     * the peer. It exit when the connection is closed.
+     * The main loop of the peer when it runs in its own thread.
+     * It does the handshake, starts the writer thread (see writeLoop()) and
+     * then blocks on reading messages from the peer until the connection is
+     * closed.
      */
     public void run() {
         try {
-
             if (!this.connection.isConnected()) {
                 this.connection.connect();
             }
 
-            byte reserved[] = { 0, 0, 0, 0, 0, 0, 0, 0};
-            if (CONF.getPropertyBoolean("DHT")) {
-                reserved[7] = 1;
-            }
-
             byte[] infoHash = null;
             if (this.torrent != null) {
                 infoHash = this.torrent.infoHash;
@@ -151,7 +241,7 @@ public class Peer implements Runnable, PeerConnectionListener  {
 
             boolean handshake = this.connection.handshake (
                     infoHash,
-                    reserved,
+                    ownReserved(),
                     PeerManager.peerId()); 
             if (!handshake) {
                 invalidate();
@@ -160,84 +250,314 @@ public class Peer implements Runnable, PeerConnectionListener  {
             LOG.debug("Handshake done");
             
             Message bitfield = new BitfieldMessage(
-                    this.torrent.pieceManager.bitfield);
+                    this.torrent.pieceManager.bitfield.toByteArray());
             this.connection.send(bitfield);
+            this.connection.writePending();
+            this.handshakeDone = true;
+
+            //TODO: remove, when peerManager has an algorithm to handle this
+            setChoked(false);
+
+            Threads.start(new Runnable() {
+                public void run () {
+                    writeLoop();
+                }
+            }, toString() + "-writer");
+
+            // The socket has a timeout of PEER_TIMEOUT
+            while (this.connection.isConnected() && this.isValid) {
+                this.connection.blockingReceive();
+            }
         } catch (Exception e) {
-            invalidate();
-            e.printStackTrace();
+            if (this.isValid) {
+                e.printStackTrace();
+            }
         }
 
-        //TODO: remove, when peerManager has an algorithm to handle this
-        setChoked(false);
+        if (this.isValid) invalidate();
+    }
 
+    /**
+     * The loop of the writer thread of the peer when it runs in its own
+     * thread. It sleeps until wakeup() is called (or a keep-alive is due) and
+     * then sends everything that was queued.
+     */
+    private void writeLoop () {
+        long lastKeepAlive = System.currentTimeMillis();
         try {
-            long time = System.currentTimeMillis();
             while (this.connection.isConnected() && this.isValid) {
-
-                // Wait a bit for a message but not to much. (It doesn't wait
-                // more than necessary
-                Message r = null;
-                int count = 0;
-                while (r == null && count < 10) {
-                    r = this.connection.receive();
-                    try {
-                        Thread.currentThread().sleep(SLEEP_DELAY);
-                    } catch (InterruptedException e) {
-                        LOG.debug("Got InterruptedException while sleeping.");
-                        Thread.currentThread().interrupt();
-                        invalidate();
+                this.flushLock.lock();
+                try {
+                    long delay = lastKeepAlive + PEER_TIMEOUT / 2
+                                 - System.currentTimeMillis();
+                    while (!this.flushScheduled.get() && delay > 0) {
+                        this.flushCondition.await(delay,
+                                                  TimeUnit.MILLISECONDS);
+                        delay = lastKeepAlive + PEER_TIMEOUT / 2
+                                - System.currentTimeMillis();
                     }
-                    count++;
+                } finally {
+                    this.flushLock.unlock();
                 }
 
-                // Send all the messages frow msgOutQueue
-                while (this.msgOutQueue.size() > 0) {
-                    Message msg = this.msgOutQueue.poll();
-                    this.connection.send(msg);
+                // Send keep-alive according to Bittorrent specificiations
+                long now = System.currentTimeMillis();
+                if (now - lastKeepAlive > PEER_TIMEOUT / 2) {
+                    lastKeepAlive = now;
+                    keepAlive();
                 }
 
-                // Send one of our request
-                if (this.ownRequestQueue.size() > 0) {
-                    DataBlockInfo info = this.ownRequestQueue.poll();
-                    Message msg = new RequestMessage(info);
-                    this.connection.send(msg);
-                }
+                flush();
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("Writer interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (this.isValid) {
+                e.printStackTrace();
+            }
+        }
 
-                // Respond to a request of the peer
-                if (this.peerRequestQueue.size() > 0) {
-                    DataBlockInfo info = this.peerRequestQueue.poll();
-                    sendBlock(info);
-                }
+        if (this.isValid) invalidate();
+    }
 
-                // Send keep-alive according to Bittorrent specificiations
-                if (System.currentTimeMillis() - time > PEER_TIMEOUT / 2) {
-                    keepAlive();
-                    time = System.currentTimeMillis();
-                }
-                
+    /**
+     * Registers the connection of this peer with the selector of its
+     * PeerEventLoop. Must only be called by the PeerEventLoop.
+     *
+     * @param selector  the selector of the PeerEventLoop
+     * @throws IOException if the connection couldn't be registered
+     */
+    void register (Selector selector)
+    throws IOException {
+        this.connectTime = System.currentTimeMillis();
+        this.lastReceived = this.connectTime;
+        this.lastKeepAlive = this.connectTime;
+        this.connection.register(selector, this);
+        if (this.connection.isConnected()) {
+            onConnected();
+        }
+    }
+
+    /**
+     * Called by the PeerEventLoop when the connection can be finished.
+     *
+     * @throws IOException if the connection failed
+     */
+    void onConnectable ()
+    throws IOException {
+        if (this.connection.finishConnect()) {
+            onConnected();
+        }
+    }
+
+    /**
+     * Called once the connection is established in non-blocking mode: if we
+     * initiated the connection, our handshake is sent.
+     *
+     * @throws IOException if PeerConnection.writePending() throws it
+     */
+    private void onConnected ()
+    throws IOException {
+        if (this.initiated) {
+            this.connection.queueHandshake(this.torrent.infoHash,
+                                           ownReserved(),
+                                           PeerManager.peerId());
+            this.connection.writePending();
+        }
+    }
+
+    /**
+     * Called by the PeerEventLoop when data can be read from the connection.
+     * Received messages are dispatched to the PeerConnectionListener methods
+     * of this peer.
+     *
+     * @throws IOException if the connection failed
+     */
+    void onReadable ()
+    throws IOException {
+        this.lastReceived = System.currentTimeMillis();
+        if (!this.handshakeDone) {
+            if (!this.connection.receiveHandshake(ownReserved(),
+                                                  PeerManager.peerId(),
+                                                  this.initiated)) {
+                return;
             }
+            this.handshakeDone = true;
+            LOG.debug("Handshake done");
+            this.connection.send(new BitfieldMessage(
+                        this.torrent.pieceManager.bitfield.toByteArray()));
+            //TODO: remove, when peerManager has an algorithm to handle this
+            setChoked(false);
+        }
+        this.connection.receiveAvailable();
+        flush();
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Called by the PeerEventLoop when data can be written to the
+     * connection.
+     *
+     * @throws IOException if the connection failed
+     */
+    void onWritable ()
+    throws IOException {
+        if (this.connection.writePending()) {
+            // Send more blocks if we stopped because too much was pending
+            flush();
+        }
+    }
+
+    /**
+     * Called by the PeerEventLoop every PeerEventLoop.TICK_DELAY ms.
+     * It handles timeouts and keep-alives.
+     *
+     * @param now   the current time in ms
+     * @throws IOException if the connection failed
+     */
+    void onTick (long now)
+    throws IOException {
+        if (!this.handshakeDone
+            && now - this.connectTime > PeerConnection.CONNECT_TIMEOUT * 2) {
+            LOG.debug("Connection or handshake timed out");
             invalidate();
+            return;
         }
+        if (now - this.lastReceived > PEER_TIMEOUT) {
+            LOG.debug("Didn't receive anything for " + PEER_TIMEOUT + "ms");
+            invalidate();
+            return;
+        }
+        // Send keep-alive according to Bittorrent specificiations
+        if (this.handshakeDone && now - this.lastKeepAlive > PEER_TIMEOUT / 2) {
+            this.lastKeepAlive = now;
+            keepAlive();
+            flush();
+        }
+    }
 
-        if (this.isValid) invalidate();
+    /**
+     * Marks this peer as needing a flush(). Returns false if it was already
+     * marked. Used by the PeerEventLoop.
+     */
+    boolean scheduleFlush () {
+        return this.flushScheduled.compareAndSet(false, true);
     }
 
     /**
-     * Sends a block of data to the peer.
+     * Sends the queued messages, our queued requests and answers the requests
+     * of the peer as long as not too much data is waiting to be written.
+     * Everything is encoded in the outbound buffer of the connection and then
+     * written at once (see PeerConnection.writePending()).
+     * Must only be called by the PeerEventLoop or by the writer thread of the
+     * peer.
+     *
+     * @throws IOException if the connection failed
+     */
+    void flush ()
+    throws IOException {
+        this.flushScheduled.set(false);
+        if (!this.handshakeDone || !this.isValid) return;
+
+        do {
+            Message msg;
+            while ((msg = this.msgOutQueue.poll()) != null) {
+                this.connection.send(msg);
+            }
+
+            DataBlockInfo info;
+            while ((info = this.ownRequestQueue.poll()) != null) {
+                this.connection.send(new RequestMessage(info));
+                if (this.outstandingRequests.isEmpty()) {
+                    this.unqueuedRequest = info;
+                }
+                this.outstandingRequests.put(info, System.nanoTime());
+            }
+
+            while (this.connection.pendingBytes() < MAX_PENDING_BYTES
+                   && (info = this.peerRequestQueue.poll()) != null) {
+                sendBlock(info);
+            }
+        } while (this.connection.writePending()
+                 && !this.peerRequestQueue.isEmpty());
+    }
+
+    /**
+     * Makes our queued messages be sent as soon as possible: the peer is
+     * scheduled on its PeerEventLoop or its writer thread is woken up.
+     */
+    private void wakeup () {
+        PeerEventLoop loop = this.eventLoop;
+        if (loop != null) {
+            loop.wakeup(this);
+            return;
+        }
+        this.flushLock.lock();
+        try {
+            this.flushScheduled.set(true);
+            this.flushCondition.signal();
+        } finally {
+            this.flushLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a block of data to the peer. The block is copied from the
+     * PieceCache if it's cached there, or if the data isn't stored in files,
+     * and sent straight from the files of the torrent otherwise (see
+     * PeerConnection.sendPiece()).
      *
      * @param info    The DataBlockInfo identifying the block to send to the
      *                peer
-     * @throws IOException if PeerConnetion.send(Message) throws it
+     * @throws IOException if PeerConnetion.sendPiece() throws it
      */
     private void sendBlock(DataBlockInfo info)
     throws IOException {
-        byte[] block = null;
+        PieceManager pieceManager = this.torrent.pieceManager;
+        if (!pieceManager.isFileBacked()) {
+            sendCopiedBlock(info);
+            return;
+        }
+        if (pieceManager.isReadCacheEnabled()) {
+            ByteBuffer block = pieceManager.getCachedBlock(
+                    info.pieceIndex(), info.offset(), info.length());
+            if (block != null) {
+                sendCopiedBlock(info, block);
+                return;
+            }
+        }
+        FileRegion[] regions = null;
         try {
-            block = this.torrent.pieceManager
-                .getBlock(info.pieceIndex(), info.offset(), info.length());
+            regions = this.torrent.pieceManager.getBlockRegions(
+                    info.pieceIndex(), info.offset(), info.length());
+        } catch (Exception e) {
+            LOG.error("Exception while getting block:");
+            e.printStackTrace();
+        }
+
+        if (regions == null) {
+            LOG.debug("Block is null " +  info);
+            return;
+        }
+        this.connection.sendPiece(info.pieceIndex(), info.offset(), regions,
+                                  info.length());
+
+        this.uploaded.addAndGet(info.length());
+        this.torrent.incrementUploaded(info.length());
+    }
+
+    /**
+     * Sends a copy of a block of data to the peer, read from the storage.
+     */
+    private void sendCopiedBlock(DataBlockInfo info)
+    throws IOException {
+        ByteBuffer block = null;
+        try {
+            byte[] data = this.torrent.pieceManager.getBlock(
+                    info.pieceIndex(), info.offset(), info.length());
+            if (data != null) {
+                block = ByteBuffer.wrap(data);
+            }
         } catch (Exception e) {
             LOG.error("Exception while getting block:");
             e.printStackTrace();
@@ -245,13 +565,20 @@ public class Peer implements Runnable, PeerConnectionListener  {
 
         if (block == null) {
             LOG.debug("Block is null " +  info);
+            return;
         }
-        Message msg = new PieceMessage(
-                      info.pieceIndex(), info.offset(), block);
-        this.connection.send(msg);
+        sendCopiedBlock(info, block);
+    }
 
-        this.uploaded.addAndGet(block.length);
-        this.torrent.incrementUploaded(block.length);
+    /**
+     * Sends the given copy of a block of data to the peer.
+     */
+    private void sendCopiedBlock(DataBlockInfo info, ByteBuffer block)
+    throws IOException {
+        this.connection.sendPiece(info.pieceIndex(), info.offset(), block);
+
+        this.uploaded.addAndGet(info.length());
+        this.torrent.incrementUploaded(info.length());
     }
 
     /**
@@ -262,6 +589,7 @@ public class Peer implements Runnable, PeerConnectionListener  {
     private void keepAlive() throws IOException {
         Message msg = new KeepAliveMessage();
         this.msgOutQueue.offer(msg);
+        wakeup();
     }
     
     /**
@@ -283,6 +611,7 @@ public class Peer implements Runnable, PeerConnectionListener  {
             msg = new UnchokeMessage();
         }
         this.msgOutQueue.offer(msg);
+        wakeup();
     }
 
     /**
@@ -304,6 +633,7 @@ public class Peer implements Runnable, PeerConnectionListener  {
             msg = new NotInterestedMessage();
         }
         this.msgOutQueue.offer(msg);
+        wakeup();
     }
 
     /**
@@ -313,11 +643,74 @@ public class Peer implements Runnable, PeerConnectionListener  {
      */
     public boolean canRequest() {
         boolean b = this.isValid && this.connection.isConnected() &&
-            !this.isChokingUs && this.ownRequestQueue.size() <
-            this.torrent.peerManager.MAX_QUEUED_REQUESTS;
+            !this.isChokingUs && pendingRequests() < requestWindow();
         return b;
     }
 
+    /**
+     * Returns the maximum number of requests we keep pending with this peer.
+     * It is adapted to the bandwidth-delay product of the peer, see
+     * RequestWindow.
+     */
+    public int requestWindow() {
+        return this.requestWindow.size();
+    }
+
+    /**
+     * Returns the smoothed round-trip time of our requests in ms.
+     */
+    public double requestRtt() {
+        return this.requestWindow.rtt();
+    }
+
+    /**
+     * Returns the smoothed rate at which the peer delivers the blocks we
+     * request in bytes per second.
+     */
+    public double deliveryRate() {
+        return this.requestWindow.rate();
+    }
+
+    /**
+     * Returns the number of requests queued or sent to the peer for which we
+     * didn't get the piece yet.
+     */
+    public int pendingRequests() {
+        return this.ownRequestQueue.size() + this.outstandingRequests.size();
+    }
+
+    /**
+     * Fills the request window of this peer with free blocks it has, if it
+     * doesn't choke us. This is called by the PeerManager and as soon as the
+     * peer unchokes us or sends a piece so that the pipeline stays full.
+     * During the endgame, blocks already requested from other peers are
+     * requested too.
+     */
+    public synchronized void requestBlocks() {
+        if (!canRequest() || this.torrent.pieceManager.isComplete()) return;
+
+        PieceManager pieceManager = this.torrent.pieceManager;
+        int free = requestWindow() - pendingRequests();
+        try {
+            List<DataBlockInfo> infoList =
+                pieceManager.getFreeBlocks(this.bitfield, free, this);
+            if (infoList.size() < free && pieceManager.isEndgame()) {
+                Set<DataBlockInfo> pending = new HashSet<DataBlockInfo>(
+                        this.outstandingRequests.keySet());
+                pending.addAll(this.ownRequestQueue);
+                pending.addAll(infoList);
+                infoList.addAll(pieceManager.getEndgameBlocks(
+                        this.bitfield, free - infoList.size(), pending));
+            }
+            for (DataBlockInfo info: infoList) {
+                sendRequest(info);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            invalidate();
+        }
+    }
+
     public boolean isChoked() {
         return this.isChoked;
     }
@@ -355,18 +748,28 @@ public class Peer implements Runnable, PeerConnectionListener  {
     }
 
     public boolean isComplete() {
-        return ByteArrays.isComplete(this.bitfield, this.torrent.pieceManager.piecesNumber());
+        return this.bitfield.isComplete();
     }
 
     public void invalidate() {
         LOG.warning("Invalidate");
         this.isValid = false;
+        synchronized (this) {
+            if (this.availabilityCounted) {
+                this.torrent.pieceManager.removePeerBitfield(this.bitfield);
+                this.availabilityCounted = false;
+            }
+        }
+        if (this.torrent != null) {
+            this.torrent.pieceManager.releaseRequests(this);
+        }
         try {
             this.connection.close();
         } catch (IOException e) {
             LOG.error ("Exception while closing connection:");
             LOG.error (e.getMessage());
         }
+        wakeup();
     }
 
     public boolean isConnected() {
@@ -374,17 +777,14 @@ public class Peer implements Runnable, PeerConnectionListener  {
     }
 
     /**
-     * Update the isInteresting flag (and send message if needed)
+     * Count again the pieces this peer has that we don't have and update the
+     * isInteresting flag (and send message if needed). Otherwise, the count
+     * is updated when the peer or us get a piece.
      */
-    public void updateInteresting() {
-        for (int i = 0; i < this.bitfield.length; i++) {
-            //mask with every bit(piece) we haven't
-            if ((this.bitfield[i] & ~this.torrent.pieceManager.bitfield[i]) != 0) {
-                setInteresting(true);
-                return;
-            }
-        }
-        setInteresting(false);
+    public synchronized void updateInteresting() {
+        this.missingPieces =
+            this.bitfield.countBitsNotIn(this.torrent.pieceManager.bitfield);
+        setInteresting(this.missingPieces > 0);
     }
 
     /**
@@ -394,7 +794,7 @@ public class Peer implements Runnable, PeerConnectionListener  {
      * @return true if this piece has the piece at the given index
      */
     public boolean hasPiece(int index) {
-        return ByteArrays.isBitSet(this.bitfield, index);
+        return this.bitfield.get(index);
     }
 
     /**
@@ -406,6 +806,52 @@ public class Peer implements Runnable, PeerConnectionListener  {
         LOG.debug("Sending request: pieceIndex: " + info.pieceIndex()
                   + " offset: " + info.offset() + " ");
         this.ownRequestQueue.offer(info);
+        wakeup();
+    }
+
+    /**
+     * Forgets about the given blocks if they were requested from this peer
+     * and sends cancel messages for the ones already sent. This is used
+     * during the endgame once a block has been received from another peer.
+     *
+     * @param infos the blocks to cancel
+     */
+    public void cancelRequests(Collection<DataBlockInfo> infos) {
+        boolean cancelled = false;
+        for (DataBlockInfo info: infos) {
+            if (this.ownRequestQueue.remove(info)) continue;
+            if (this.outstandingRequests.remove(info) != null) {
+                LOG.debug("Sending cancel: pieceIndex: " + info.pieceIndex()
+                          + " offset: " + info.offset() + " ");
+                this.msgOutQueue.offer(new CancelMessage(info));
+                cancelled = true;
+            }
+        }
+        if (cancelled) wakeup();
+    }
+
+    /**
+     * Forgets about the requests sent to the peer for longer than the
+     * "RequestTimeout" property and sends cancel messages for them. The
+     * PieceManager expires them too so that they can be requested again.
+     */
+    public void expireRequests() {
+        long timeout = CONF.getPropertyInt("RequestTimeout") * 1000000000L;
+        long now = System.nanoTime();
+        boolean cancelled = false;
+        Iterator<Map.Entry<DataBlockInfo, Long>> it =
+            this.outstandingRequests.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<DataBlockInfo, Long> entry = it.next();
+            if (now - entry.getValue() < timeout) continue;
+            it.remove();
+            LOG.debug("Request expired: pieceIndex: "
+                      + entry.getKey().pieceIndex() + " offset: "
+                      + entry.getKey().offset() + " ");
+            this.msgOutQueue.offer(new CancelMessage(entry.getKey()));
+            cancelled = true;
+        }
+        if (cancelled) wakeup();
     }
 
     /**
@@ -416,7 +862,15 @@ public class Peer implements Runnable, PeerConnectionListener  {
     public void sendHave(int piece) {
         Message msg = new HaveMessage(piece);
         this.msgOutQueue.offer(msg);
-        updateInteresting();
+        synchronized (this) {
+            if (this.bitfield.get(piece) && --this.missingPieces <= 0) {
+                // The peer may have announced the piece after we got it,
+                // without being counted: make sure it's really not
+                // interesting anymore.
+                updateInteresting();
+            }
+        }
+        wakeup();
     }
     
     /**
@@ -464,6 +918,11 @@ public class Peer implements Runnable, PeerConnectionListener  {
     @Override
     public void onChokeMessage (ChokeMessage msg) {
         this.isChokingUs = true;
+        // The peer discards our pending requests when it chokes us
+        this.outstandingRequests.clear();
+        this.ownRequestQueue.clear();
+        this.torrent.pieceManager.releaseRequests(this);
+        this.requestWindow.pause();
     }
 
     /**
@@ -472,6 +931,7 @@ public class Peer implements Runnable, PeerConnectionListener  {
     @Override
     public void onUnchokeMessage (UnchokeMessage  msg) {
         this.isChokingUs = false;
+        requestBlocks();
     }
 
     /**
@@ -495,12 +955,22 @@ public class Peer implements Runnable, PeerConnectionListener  {
      */
     @Override
     public void onHaveMessage (HaveMessage msg) {
+        if (msg.index < 0
+            || msg.index >= this.torrent.pieceManager.piecesNumber()) {
+            LOG.warning("Ignoring have message for piece " + msg.index);
+            return;
+        }
 
-        ByteArrays.setBit(this.bitfield, msg.index, 1);
-        if (!this.isInteresting &&
-            !ByteArrays.isBitSet(
-                this.torrent.pieceManager.bitfield, msg.index)) {
-            setInteresting(true);
+        synchronized (this) {
+            if (!this.bitfield.set(msg.index)) return;
+            if (this.isValid) {
+                this.torrent.pieceManager.addPeerPiece(msg.index);
+                this.availabilityCounted = true;
+            }
+            if (!this.torrent.pieceManager.bitfield.get(msg.index)) {
+                this.missingPieces++;
+                setInteresting(true);
+            }
         }
     }
 
@@ -509,12 +979,24 @@ public class Peer implements Runnable, PeerConnectionListener  {
      */
     @Override
     public void onBitfieldMessage (BitfieldMessage msg) {
-        if (msg.bitfield.length != this.bitfield.length) {
+        int piecesNumber = this.torrent.pieceManager.piecesNumber();
+        int expected = (piecesNumber + 7) / 8;
+        if (msg.bitfield.length != expected) {
             LOG.error("Wrong bitfield length, got: " + msg.bitfield.length
-                      + " expected: " + this.bitfield.length);
+                      + " expected: " + expected);
             invalidate();
+            return;
+        }
+
+        synchronized (this) {
+            if (!this.isValid) return;
+            if (this.availabilityCounted) {
+                this.torrent.pieceManager.removePeerBitfield(this.bitfield);
+            }
+            this.bitfield = new Bitfield(msg.bitfield, piecesNumber);
+            this.torrent.pieceManager.addPeerBitfield(this.bitfield);
+            this.availabilityCounted = true;
         }
-        this.bitfield = msg.bitfield;
         updateInteresting();
         LOG.debug("Bitfield: " + ByteArrays.toHexString(msg.bitfield));
     }
@@ -538,6 +1020,7 @@ public class Peer implements Runnable, PeerConnectionListener  {
         if (! this.peerRequestQueue.offer(info)) {
             LOG.debug("Ignoring request because queue is full");
         }
+        wakeup();
     }
 
     /**
@@ -545,6 +1028,15 @@ public class Peer implements Runnable, PeerConnectionListener  {
      */
     @Override
     public void onPieceMessage (PieceMessage msg) {
+        DataBlockInfo info =
+            new DataBlockInfo(msg.index, msg.offset, msg.block.length);
+        Long sent = this.outstandingRequests.remove(info);
+        if (sent != null) {
+            long now = System.nanoTime();
+            boolean unqueued = info.equals(this.unqueuedRequest);
+            this.requestWindow.onBlock(now - sent, unqueued,
+                                       msg.block.length, now);
+        }
         try {
             this.torrent.pieceManager.putBlock(
                     msg.index, msg.offset, msg.block);
@@ -552,8 +1044,14 @@ public class Peer implements Runnable, PeerConnectionListener  {
             this.torrent.incrementDownloaded(msg.block.length);
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // The block has been written, it can be reused
+            PieceManager.BLOCK_POOL.release(msg.block);
         }
 
+        // Keep the pipeline full
+        requestBlocks();
+
     }
 
     /**
@@ -561,8 +1059,7 @@ public class Peer implements Runnable, PeerConnectionListener  {
      */
     @Override
     public void onCancelMessage (CancelMessage msg) {
-        ListIterator<DataBlockInfo> iter =
-            this.peerRequestQueue.listIterator(0);
+        Iterator<DataBlockInfo> iter = this.peerRequestQueue.iterator();
         while (iter.hasNext()) {
             DataBlockInfo info = iter.next();
             if (msg.index == info.pieceIndex() && msg.offset == info.offset() &&
@@ -621,7 +1118,8 @@ public class Peer implements Runnable, PeerConnectionListener  {
             this.torrent = TorrentManager.instance().getTorrent(infoHash);
             if (this.torrent == null) return false;
 
-            this.bitfield = new byte[this.torrent.pieceManager.bitfield.length];
+            this.bitfield =
+                new Bitfield(this.torrent.pieceManager.piecesNumber());
             this.torrent.peerManager.addPeer(this);
         }
 
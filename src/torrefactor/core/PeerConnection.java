@@ -32,13 +32,26 @@ import torrefactor.util.*;
 
 import java.net.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.security.SecureRandom;
 
 
 /**
  * This class represents a connection with a peer.
  * It handles the IO streams and provides methods to send and receive messages.
+ *
+ * The connection can be used in two ways: with blocking streams from the
+ * threads of the peer (connect(), handshake(), blockingReceive()) or, once
+ * register()-ed with a Selector, in non-blocking mode from a PeerEventLoop
+ * (finishConnect(), queueHandshake(), receiveHandshake(),
+ * receiveAvailable()).
+ *
+ * In both cases, send() and sendPiece() only encode the messages in an
+ * outbound buffer: they are written by writePending(), so that a burst of
+ * messages is sent with a few system calls.
  */
 public class PeerConnection {
     private final Logger LOG = new Logger();
@@ -50,25 +63,46 @@ public class PeerConnection {
     static final int CONNECT_TIMEOUT =  5000; // in ms
     static final int SO_TIMEOUT =  2*60*1000; // in ms
     static final int MAX_MESSAGE_LENGTH = 1 << 21;
+    static final int READ_BUFFER_SIZE = (1 << 15); // in bytes
+    static final int WRITE_BUFFER_SIZE = (1 << 14); // in bytes
+    // Maximum number of buffers written by a single gathering write
+    static final int MAX_GATHER = 16;
 
     private PeerConnectionListener listener;
+    private SocketChannel channel;
     private Socket socket;
     private InetAddress address;
     private int port;
     private DataInputStream inputStream;
     private DataOutputStream outputStream;
 
+    // Outbound stage: messages are encoded in writeBuffer which is moved to
+    // writeQueue when full or when writePending() is called. writeQueue
+    // contains ByteBuffers (ready to be written) and FileRegions.
+    private ByteBuffer writeBuffer;
+    private ByteBuffer spareBuffer;
+    private LinkedList<Object> writeQueue = new LinkedList<Object>();
+    private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long pendingBytes = 0;
+
+    // Used in non-blocking mode only
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+
     /**
      * Create a new PeerConnection to address at port.
      *
      * @param address    the InetAddress of the peer
      * @param port       the port where the peer is listening
      * @param listener   the PeerConnectionListener for this connection
+     * @throws IOException if the SocketChannel couldn't be opened
      */
     public PeerConnection (InetAddress address, int port,
-            PeerConnectionListener listener) {
+            PeerConnectionListener listener)
+    throws IOException {
         this.listener = listener;
-        this.socket = new Socket();
+        this.channel = SocketChannel.open();
+        this.socket = this.channel.socket();
         setupSocket();
         this.address = address;
         this.port = port;
@@ -76,14 +110,16 @@ public class PeerConnection {
     }
 
     /**
-     * Create a new PeerConnection from socket.
+     * Create a new PeerConnection from a connected channel.
      *
-     * @param socket    the socket connected to the peer
+     * @param channel   the channel connected to the peer
      * @param listener  the PeerConnectionListener for this connection
      */
-    public PeerConnection (Socket socket, PeerConnectionListener listener) {
+    public PeerConnection (SocketChannel channel,
+            PeerConnectionListener listener) {
         this.listener = listener;
-        this.socket = socket;
+        this.channel = channel;
+        this.socket = channel.socket();
         this.address = this.socket.getInetAddress();
         this.port = this.socket.getPort();
 
@@ -166,7 +202,7 @@ public class PeerConnection {
         if (this.outputStream != null) {
             this.outputStream.close();
         }
-        this.socket.close();
+        this.channel.close();
     }
 
     /**
@@ -175,31 +211,120 @@ public class PeerConnection {
      * @return true if the connection is established
      */
     public boolean isConnected () {
-        return this.socket.isConnected();
+        return this.channel.isConnected();
     }
 
     /**
-     * Sends the given message to the peer.
+     * Puts the channel in non-blocking mode and registers it with the given
+     * selector. If the connection isn't established yet, it is initiated and
+     * the key will be interested in OP_CONNECT.
      *
-     * @throws IOException    if an IOException was thrown by write() or flush()
+     * @param selector      the selector of the PeerEventLoop
+     * @param attachment    the object to attach to the SelectionKey
+     * @throws IOException  if the channel couldn't be registered or the
+     *                      connection couldn't be initiated
      */
-    public void send (Message msg) 
+    void register (Selector selector, Object attachment)
     throws IOException {
-        byte[] a = msg.toByteArray();
-        byte[] len = ByteArrays.fromInt(a.length);
-        this.outputStream.write(len);
-        this.outputStream.write(a);
-        this.outputStream.flush();
-        
-        if (a.length > 12) {
-        LOG.debug("Sent message: " + msg
-                  + ' ' + "with len: "
-                  + ByteArrays.toHexString(len) + " (" + a.length + ")");
-        } else {
-        LOG.debug("Sent message: " + msg
-                  + ' ' + ByteArrays.toHexString(a) + "with len: "
-                  + ByteArrays.toHexString(len) + " (" + a.length + ")");
+        this.channel.configureBlocking(false);
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        int ops = SelectionKey.OP_READ;
+        if (!this.channel.isConnected()) {
+            LOG.debug("Connecting…");
+            boolean connected = this.channel.connect(
+                    new InetSocketAddress(this.address, this.port));
+            if (!connected) {
+                ops = SelectionKey.OP_CONNECT;
+            }
         }
+        this.key = this.channel.register(selector, ops, attachment);
+    }
+
+    /**
+     * Finishes the establishment of a connection initiated in non-blocking
+     * mode.
+     *
+     * @return true if the connection is established
+     * @throws IOException if the connection failed
+     */
+    boolean finishConnect ()
+    throws IOException {
+        if (!this.channel.finishConnect()) return false;
+        LOG.debug("Connected.");
+        updateInterest();
+        return true;
+    }
+
+    /**
+     * Sends the given message to the peer.
+     * The message is only encoded in the outbound buffer: writePending() must
+     * be called to actually send it.
+     */
+    public void send (Message msg) {
+        int len = msg.length();
+        ByteBuffer buffer = reserve(4 + len);
+        buffer.putInt(len);
+        msg.writeTo(buffer);
+
+        LOG.debug("Sent message: " + msg + " with len: " + len);
+    }
+
+    /**
+     * Sends a piece message whose block is read straight from the files
+     * with FileChannel.transferTo() instead of being copied to the heap.
+     * The message is only queued: writePending() must be called to actually
+     * send it.
+     *
+     * @param index     the index of the piece
+     * @param offset    the offset of the block within the piece
+     * @param regions   the regions of the files containing the block
+     * @param length    the length of the block
+     */
+    public void sendPiece (int index, int offset, FileRegion[] regions,
+            int length) {
+        // length, id, index and offset
+        ByteBuffer buffer = reserve(13);
+        buffer.putInt(9 + length);
+        buffer.put(PieceMessage.id);
+        buffer.putInt(index);
+        buffer.putInt(offset);
+
+        sealWriteBuffer();
+        for (FileRegion region: regions) {
+            this.writeQueue.add(region);
+            this.pendingBytes += region.remaining();
+        }
+
+        LOG.debug("Sent piece: index: " + index + " offset: " + offset
+                  + " length: " + length);
+    }
+
+    /**
+     * Sends a piece message whose block is already in memory (see
+     * PieceCache). The block is queued as is and must not be modified until
+     * it is sent. The message is only queued: writePending() must be called
+     * to actually send it.
+     *
+     * @param index     the index of the piece
+     * @param offset    the offset of the block within the piece
+     * @param block     a heap buffer containing the block
+     */
+    public void sendPiece (int index, int offset, ByteBuffer block) {
+        // Direct buffers in writeQueue are reused by writePending()
+        assert !block.isDirect();
+        int length = block.remaining();
+        ByteBuffer buffer = reserve(13);
+        buffer.putInt(9 + length);
+        buffer.put(PieceMessage.id);
+        buffer.putInt(index);
+        buffer.putInt(offset);
+
+        sealWriteBuffer();
+        this.writeQueue.add(block);
+        this.pendingBytes += length;
+
+        LOG.debug("Sent piece: index: " + index + " offset: " + offset
+                  + " length: " + length);
     }
 
     /**
@@ -225,32 +350,38 @@ public class PeerConnection {
      *
      * @return the received Message
      * @throws IOException when in IOException occured while reading on the
-     *                       socket.
+     *                       socket or if the length of the message is
+     *                       invalid.
      */
     public Message blockingReceive ()
     throws IOException {
 
-        byte[] i = new byte[4];
         Message msg = null;
         
-        this.inputStream.read(i);
-        int len = ByteArrays.toInt(i);
+        int len = this.inputStream.readInt();
         LOG.debug("Length: " + len);
 
         if (len == 0) {
             msg = new KeepAliveMessage();
             this.listener.onKeepAliveMessage();
             return msg;
-        } else if (len > MAX_MESSAGE_LENGTH) {
-            LOG.error("Got message with length=" + len
-                      + " (len>MAX_MESSAGE_LENGTH) dropping connection.");
-            close();
+        } else if (len < 0 || len > MAX_MESSAGE_LENGTH) {
+            throw new ProtocolException("Got message with length=" + len
+                                        + " (len>MAX_MESSAGE_LENGTH)");
         }
 
         byte id = this.inputStream.readByte();
         len--;
         LOG.debug("Id: " + id);
 
+        if (id == PieceMessage.id && len > 8) {
+            int index = this.inputStream.readInt();
+            int offset = this.inputStream.readInt();
+            byte[] block = allocateBlock(len - 8);
+            this.inputStream.readFully(block);
+            return dispatchPiece(index, offset, block);
+        }
+
         byte[] msgArray = null;
         if (len > 0) {
             msgArray = new byte[len];
@@ -258,6 +389,49 @@ public class PeerConnection {
         }
         LOG.debug("Message read with id: " + id);
 
+        return dispatch(id, msgArray);
+    }
+
+    /**
+     * Returns an array to receive a block of the given length. Blocks of the
+     * usual size come from PieceManager.BLOCK_POOL: they must be released
+     * once they have been written.
+     */
+    private byte[] allocateBlock (int length) {
+        if (length == PieceManager.BLOCK_SIZE) {
+            return PieceManager.BLOCK_POOL.get();
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Dispatch a received piece to the PeerConnectionListener. This is
+     * separated from dispatch() so that the block is copied only once, from
+     * the socket to its array.
+     *
+     * @param index     the index of the piece
+     * @param offset    the offset of the block within the piece
+     * @param block     the block, see allocateBlock()
+     * @return the message
+     */
+    private Message dispatchPiece (int index, int offset, byte[] block) {
+        PieceMessage msg = new PieceMessage(index, offset, block);
+        this.listener.onPieceMessage(msg);
+        LOG.debug("Message is " + msg);
+        return msg;
+    }
+
+    /**
+     * Builds the message with the given id and payload and dispatch it to the
+     * PeerConnectionListener.
+     *
+     * @param id        the id of the message
+     * @param msgArray  the payload of the message (without the id) or null
+     * @return the message
+     */
+    private Message dispatch (byte id, byte[] msgArray) {
+        Message msg = null;
+
         switch (id) {
 
             case ChokeMessage.id:
@@ -343,6 +517,197 @@ public class PeerConnection {
         return msg;
     }
 
+    /**
+     * Reads what is available on the channel and dispatch every complete
+     * message to the PeerConnectionListener. This method never blocks and
+     * must only be used in non-blocking mode.
+     *
+     * @return the number of messages received
+     * @throws IOException if the connection was closed by the peer or if an
+     *                     invalid message was received
+     */
+    int receiveAvailable ()
+    throws IOException {
+        fill();
+        int count = 0;
+        int needed = 0;
+        this.readBuffer.flip();
+        try {
+            while (this.readBuffer.remaining() >= 4) {
+                int len = this.readBuffer.getInt(this.readBuffer.position());
+                if (len < 0 || len > MAX_MESSAGE_LENGTH) {
+                    throw new ProtocolException("Got message with length="
+                            + len + " (len>MAX_MESSAGE_LENGTH)");
+                }
+                if (this.readBuffer.remaining() < 4 + len) {
+                    needed = 4 + len;
+                    break;
+                }
+                this.readBuffer.getInt();
+                count++;
+
+                if (len == 0) {
+                    this.listener.onKeepAliveMessage();
+                    continue;
+                }
+                byte id = this.readBuffer.get();
+                if (id == PieceMessage.id && len > 9) {
+                    int index = this.readBuffer.getInt();
+                    int offset = this.readBuffer.getInt();
+                    byte[] block = allocateBlock(len - 9);
+                    this.readBuffer.get(block);
+                    dispatchPiece(index, offset, block);
+                    continue;
+                }
+                byte[] msgArray = null;
+                if (len > 1) {
+                    msgArray = new byte[len - 1];
+                    this.readBuffer.get(msgArray);
+                }
+                dispatch(id, msgArray);
+            }
+        } finally {
+            if (needed > this.readBuffer.capacity()) {
+                // The message doesn't fit in the buffer, make it bigger.
+                ByteBuffer buffer = ByteBuffer.allocateDirect(needed);
+                buffer.put(this.readBuffer);
+                this.readBuffer = buffer;
+            } else {
+                this.readBuffer.compact();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads what is available on the channel into the read buffer.
+     *
+     * @throws EOFException if the connection was closed by the peer
+     */
+    private void fill ()
+    throws IOException {
+        if (this.channel.read(this.readBuffer) == -1) {
+            throw new EOFException("Connection closed by peer");
+        }
+    }
+
+    /**
+     * Returns the outbound buffer with at least length bytes remaining. A
+     * full buffer is moved to the write queue first.
+     *
+     * @param length    the number of bytes which will be put in the buffer
+     */
+    private ByteBuffer reserve (int length) {
+        if (this.writeBuffer != null
+            && this.writeBuffer.remaining() >= length) {
+            this.pendingBytes += length;
+            return this.writeBuffer;
+        }
+
+        sealWriteBuffer();
+        if (length > WRITE_BUFFER_SIZE) {
+            this.writeBuffer = ByteBuffer.allocate(length);
+        } else if (this.spareBuffer != null) {
+            this.writeBuffer = this.spareBuffer;
+            this.spareBuffer = null;
+        } else {
+            this.writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+        this.pendingBytes += length;
+        return this.writeBuffer;
+    }
+
+    /**
+     * Moves the outbound buffer (if not empty) to the write queue.
+     */
+    private void sealWriteBuffer () {
+        if (this.writeBuffer == null || this.writeBuffer.position() == 0) {
+            return;
+        }
+        this.writeBuffer.flip();
+        this.writeQueue.add(this.writeBuffer);
+        this.writeBuffer = null;
+    }
+
+    /**
+     * Returns the number of bytes sent but not yet written.
+     */
+    long pendingBytes () {
+        return this.pendingBytes;
+    }
+
+    /**
+     * Writes what has been sent. Consecutive buffers are written with a
+     * single gathering write.
+     *
+     * In non-blocking mode, as much as the channel accepts is written and the
+     * key is made interested in OP_WRITE while data remains. In blocking mode,
+     * this blocks until everything has been written.
+     *
+     * @return true if all the queued data has been written
+     * @throws IOException if an IOException was thrown by write() or
+     *                     transferTo()
+     */
+    boolean writePending ()
+    throws IOException {
+        sealWriteBuffer();
+        boolean blocking = this.channel.isBlocking();
+        while (!this.writeQueue.isEmpty()) {
+            Object first = this.writeQueue.getFirst();
+            if (first instanceof FileRegion) {
+                FileRegion region = (FileRegion) first;
+                this.pendingBytes -= region.transferTo(this.channel);
+                if (region.remaining() > 0) {
+                    if (blocking) continue;
+                    break;
+                }
+                this.writeQueue.removeFirst();
+                continue;
+            }
+
+            int count = 0;
+            for (Object o: this.writeQueue) {
+                if (!(o instanceof ByteBuffer) || count == MAX_GATHER) break;
+                this.gather[count++] = (ByteBuffer) o;
+            }
+            this.pendingBytes -= this.channel.write(this.gather, 0, count);
+            boolean partial = false;
+            for (int i = 0; i < count; i++) {
+                ByteBuffer buffer = this.gather[i];
+                if (buffer.hasRemaining()) {
+                    partial = true;
+                    break;
+                }
+                this.writeQueue.removeFirst();
+                if (buffer.isDirect()) {
+                    // Only buffers of WRITE_BUFFER_SIZE are direct
+                    buffer.clear();
+                    this.spareBuffer = buffer;
+                }
+            }
+            Arrays.fill(this.gather, 0, count, null);
+            if (partial && !blocking) break;
+        }
+        updateInterest();
+        return this.writeQueue.isEmpty();
+    }
+
+    /**
+     * Sets the operations the key is interested in according to the
+     * state of the connection.
+     */
+    private void updateInterest () {
+        if (this.key == null || !this.key.isValid()
+            || !this.channel.isConnected()) {
+            return;
+        }
+        int ops = SelectionKey.OP_READ;
+        if (!this.writeQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        this.key.interestOps(ops);
+    }
+
     /**
      * This method handles the handshake with the peer. 
      * 
@@ -370,6 +735,76 @@ public class PeerConnection {
         return true;
     }
     
+    /**
+     * Queues our handshake, used in non-blocking mode.
+     *
+     * @param ownInfoHash   our info hash
+     * @param ownReserved   our reserved bytes
+     * @param ownPeerId     our peer id
+     */
+    void queueHandshake (byte[] ownInfoHash, byte[] ownReserved,
+            byte[] ownPeerId) {
+        ByteBuffer buffer = reserve(1 + BITTORRENT_HEADER.length
+                + ownReserved.length + ownInfoHash.length + ownPeerId.length);
+        buffer.put((byte) BITTORRENT_HEADER.length);
+        buffer.put(BITTORRENT_HEADER);
+        buffer.put(ownReserved);
+        buffer.put(ownInfoHash);
+        buffer.put(ownPeerId);
+    }
+
+    /**
+     * Reads the handshake of the peer in non-blocking mode. If we didn't
+     * initiate the connection, our handshake is queued once the handshake of
+     * the peer has been accepted.
+     *
+     * @param ownReserved   our reserved bytes
+     * @param ownPeerId     our peer id
+     * @param initiated     true if we initiated the connection (and thus
+     *                      already queued our handshake)
+     * @return true if the handshake is done, false if more data is needed
+     * @throws IOException if the connection was closed or if the handshake
+     *                     was invalid or rejected
+     */
+    boolean receiveHandshake (byte[] ownReserved, byte[] ownPeerId,
+            boolean initiated)
+    throws IOException {
+        fill();
+        this.readBuffer.flip();
+        try {
+            if (this.readBuffer.remaining() < 1) return false;
+            int inLength = this.readBuffer.get(this.readBuffer.position())
+                           & 0xFF;
+            int length = 1 + inLength + ownReserved.length + 20 + 20;
+            if (this.readBuffer.remaining() < length) return false;
+
+            this.readBuffer.get();
+            byte[] inHeader = new byte[inLength];
+            this.readBuffer.get(inHeader);
+            if (!Arrays.equals(BITTORRENT_HEADER, inHeader)) {
+                throw new ProtocolException("Unsupported protocol header: "
+                                            + new String(inHeader));
+            }
+            byte[] inReserved = new byte[ownReserved.length];
+            this.readBuffer.get(inReserved);
+            byte[] inInfoHash = new byte[20];
+            this.readBuffer.get(inInfoHash);
+            byte[] inPeerId = new byte[20];
+            this.readBuffer.get(inPeerId);
+
+            if (!this.listener.onHandshake(inPeerId, inReserved, inInfoHash)) {
+                throw new ProtocolException("Handshake rejected");
+            }
+            if (!initiated) {
+                queueHandshake(this.listener.ownInfoHash(), ownReserved,
+                               ownPeerId);
+            }
+            return true;
+        } finally {
+            this.readBuffer.compact();
+        }
+    }
+
     private void sendHandshake (byte[] ownInfoHash, byte[] ownReserved,
             byte[] ownPeerId) 
     throws IOException {
@@ -82,6 +82,8 @@ public interface PeerConnectionListener {
 
     /**
      * Executed when a PieceMessage is received.
+     * The block of the message may come from PieceManager.BLOCK_POOL, it
+     * must not be used once it has been released.
      *
      * @param msg the PieceMessage received
      */
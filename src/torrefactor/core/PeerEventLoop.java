@@ -0,0 +1,219 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A thread multiplexing the connections of many peers with a Selector.
+ *
+ * The PeerEventLoop calls the Peer when its connection is established, when
+ * data can be read and when data can be written, so no thread is needed per
+ * peer. Other threads (like PeerManager) must not touch the connection of a
+ * peer registered with an event loop, they queue messages in the Peer and call
+ * wakeup() instead.
+ *
+ * There is a fixed number of event loops (set by the "EventLoops" property)
+ * and torrents are sharded onto them by info hash. If "EventLoops" is 0,
+ * peers run in their own thread as before.
+ */
+public class PeerEventLoop implements Runnable {
+    private static final Logger LOG = new Logger();
+    private static final Config CONF = Config.getConfig();
+
+    // Delay between two calls of Peer.onTick() in ms
+    static final int TICK_DELAY = 1000;
+
+    private static PeerEventLoop[] loops;
+    private static int nextLoop = 0;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Peer> registrations =
+        new ConcurrentLinkedQueue<Peer>();
+    private final ConcurrentLinkedQueue<Peer> flushes =
+        new ConcurrentLinkedQueue<Peer>();
+
+    private PeerEventLoop () throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Returns true if peers should be run by event loops rather than by
+     * their own thread. Peers always run in their own (virtual) threads when
+     * virtual threads are used.
+     */
+    public static boolean isEnabled () {
+        return CONF.getPropertyInt("EventLoops") > 0
+               && !Threads.useVirtualThreads();
+    }
+
+    /**
+     * Returns the event loop handling the peers of the given torrent.
+     */
+    public static synchronized PeerEventLoop forTorrent (Torrent torrent)
+    throws IOException {
+        start();
+        int hash = Arrays.hashCode(torrent.infoHash) & Integer.MAX_VALUE;
+        return loops[hash % loops.length];
+    }
+
+    /**
+     * Returns an event loop for a peer whose torrent isn't known yet (peers
+     * which connected to us). Event loops are used in turn.
+     */
+    public static synchronized PeerEventLoop next () throws IOException {
+        start();
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loops[nextLoop];
+    }
+
+    /**
+     * Creates and starts the event loop threads if it hasn't been done yet.
+     */
+    private static void start () throws IOException {
+        if (loops != null) return;
+
+        int count = Math.max(1, CONF.getPropertyInt("EventLoops"));
+        PeerEventLoop[] newLoops = new PeerEventLoop[count];
+        for (int i = 0; i < count; i++) {
+            newLoops[i] = new PeerEventLoop();
+            Thread t = new Thread(newLoops[i], "PeerEventLoop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        loops = newLoops;
+        LOG.info("Started " + count + " peer event loop(s)");
+    }
+
+    /**
+     * Adds the peer to this event loop. The peer will be connected if needed.
+     * This method is thread-safe.
+     */
+    public void register (Peer peer) {
+        this.registrations.offer(peer);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Makes the event loop call Peer.flush() as soon as possible, this is
+     * used when messages have been queued by another thread.
+     * This method is thread-safe.
+     */
+    void wakeup (Peer peer) {
+        if (!peer.scheduleFlush()) return;
+        this.flushes.offer(peer);
+        this.selector.wakeup();
+    }
+
+    /**
+     * The main loop: wait for ready channels and dispatch the events to the
+     * peers.
+     */
+    public void run () {
+        long lastTick = System.currentTimeMillis();
+        while (true) {
+            try {
+                this.selector.select(TICK_DELAY);
+            } catch (IOException e) {
+                LOG.error("Selector.select() failed: " + e.getMessage());
+                e.printStackTrace();
+                continue;
+            }
+
+            Peer peer;
+            while ((peer = this.registrations.poll()) != null) {
+                try {
+                    peer.register(this.selector);
+                } catch (Exception e) {
+                    LOG.debug("Couldn't register " + peer + ": " + e);
+                    peer.invalidate();
+                }
+            }
+
+            Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                peer = (Peer) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        peer.onConnectable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        peer.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        peer.onWritable();
+                    }
+                } catch (Exception e) {
+                    LOG.debug("Dropping " + peer + ": " + e);
+                    peer.invalidate();
+                }
+            }
+
+            while ((peer = this.flushes.poll()) != null) {
+                try {
+                    peer.flush();
+                } catch (Exception e) {
+                    LOG.debug("Dropping " + peer + ": " + e);
+                    peer.invalidate();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastTick >= TICK_DELAY) {
+                lastTick = now;
+                tick(now);
+            }
+        }
+    }
+
+    /**
+     * Calls Peer.onTick() on every peer and forget the invalid ones.
+     */
+    private void tick (long now) {
+        for (SelectionKey key: this.selector.keys()) {
+            Peer peer = (Peer) key.attachment();
+            if (!peer.isValid()) {
+                key.cancel();
+                continue;
+            }
+            try {
+                peer.onTick(now);
+            } catch (Exception e) {
+                LOG.debug("Dropping " + peer + ": " + e);
+                peer.invalidate();
+            }
+        }
+    }
+}
@@ -32,15 +32,16 @@ import torrefactor.util.Config;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 
 
 /**
- * This thread listen to new connection and start new Peer threads.
+ * This thread listen to new connection and start new Peers.
  */
 public class PeerListener implements Runnable {
     private static final Logger LOG = new Logger();
     private static final Config CONF = Config.getConfig();
-    ServerSocket serverSocket;
+    ServerSocketChannel serverChannel;
     int port;
     private volatile boolean listen = true;
 
@@ -54,12 +55,13 @@ public class PeerListener implements Runnable {
     }
 
     /**
-     * The main loop of the peer listener. It creates a new Peer thread for
+     * The main loop of the peer listener. It creates and starts a new Peer for
      * each new connections.
      */
     public void run () {
         try {
-            this.serverSocket = new ServerSocket(this.port);
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.socket().bind(new InetSocketAddress(this.port));
         } catch (Exception e) {
             LOG.error("Couldn't listen on port " + this. port + ": "
                       + e.getMessage());
@@ -69,13 +71,13 @@ public class PeerListener implements Runnable {
 
         while (this.listen) {
             try {
-                Socket peerSocket = this.serverSocket.accept();
+                SocketChannel peerChannel = this.serverChannel.accept();
 
-                LOG.debug("Got new peer, starting peer thread");
-                Peer peer = new Peer(peerSocket);
-                new Thread(peer).start();
+                LOG.debug("Got new peer, starting it");
+                Peer peer = new Peer(peerChannel);
+                peer.start();
             } catch (Exception e) {
-                LOG.error("ServerSocket.accept() failed: "
+                LOG.error("ServerSocketChannel.accept() failed: "
                           + e.getMessage());
                 e.printStackTrace();
             }
@@ -83,20 +85,15 @@ public class PeerListener implements Runnable {
     }
 
     /**
-     * Stop the peer listener after ServerSocket.accept() returns.
-     * You'll have to interrupt the thread to make ServerSocket.accept()
-     * returns. Sometimes it seems to be not enough in which case you'll need
-     * to find another way to kill it.
-     * The only thing which always worked is to make the thread of PeerListener
-     * a daemon Thread so it get killed when there aren't any normal Threads
-     * anymore (and then the jvm exits…).
+     * Stop the peer listener. Closing the ServerSocketChannel makes a pending
+     * accept() throw an AsynchronousCloseException so the main loop returns.
      */
     public void stop () {
         this.listen = false;
         try {
-            this.serverSocket.close();
+            this.serverChannel.close();
         } catch (Exception e) {
-            LOG.error("Exception while closing ServerSocket: "
+            LOG.error("Exception while closing ServerSocketChannel: "
                       + e.getMessage());
             e.printStackTrace();
         }
@@ -55,6 +55,9 @@ public class PeerManager implements Runnable {
     private TrackerManager trackerManager;
     private LinkedBlockingQueue<Peer> newPeers =
         new LinkedBlockingQueue<Peer>();
+    // The periodic announce running in the background (see
+    // TrackerManager.announceAsync)
+    private Future<List<Pair<byte[], Integer>>> pendingAnnounce;
 
     //Volatile since several PeerManager could be instantiated at the same time
     private static volatile byte[] peerId;
@@ -66,10 +69,10 @@ public class PeerManager implements Runnable {
     static final int MAX_PEERS = 25;
     // In milliseconds
     static final int SLEEP_DELAY = 10;
-    // Number of blocks requested at the same time per peer
-    static final int MAX_QUEUED_REQUESTS = 10;
     // Time to sleep before retrying annouce when no tracker responded
     static final long TRACKER_RETRY_SLEEP = 5000;
+    // Minimum time between two writes of the resume record (in milliseconds)
+    static final long RESUME_INTERVAL = 60000;
 
     public PeerManager(Torrent torrent) {
         // Make sure we have a peerId
@@ -111,6 +114,9 @@ public class PeerManager implements Runnable {
 
         this.state = State.Started;
         stopped = false;
+        // True if pieces were verified since the resume record was written
+        boolean resumeDirty = false;
+        long lastResumeSave = System.currentTimeMillis();
         while (!stopped) {
             // Add peer which have been added via addPeer(Peer)
             while (this.newPeers.size() > 0) {
@@ -121,8 +127,8 @@ public class PeerManager implements Runnable {
                 this.activeMap.put(peer.getAddress(), peer);
             }
 
-            if (this.trackerManager.canAnnounce()) {
-                this.state = State.Announcing;
+            if (this.pendingAnnounce == null
+                && this.trackerManager.canAnnounce()) {
                 try {
                     
                     // Add peers from DHT
@@ -131,24 +137,37 @@ public class PeerManager implements Runnable {
                                 NodeManager.instance().peersForTorrent(
                                     this.torrent.infoHash));
                     }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return;
+                }
 
-                    // Add peers from announce
-                    List<Pair<byte[], Integer>> peersList;
-                    peersList = this.trackerManager.announce(
+                // Peers are still served while the trackers respond
+                this.pendingAnnounce = this.trackerManager.announceAsync(
                                                         Tracker.Event.none);
-                    updateMap(peersList);
+            }
+
+            // Add peers from announce
+            if (this.pendingAnnounce != null
+                && this.pendingAnnounce.isDone()) {
+                try {
+                    updateMap(this.pendingAnnounce.get());
                 } catch (Exception e) {
                     e.printStackTrace();
-                    return;
                 }
-                this.state = State.Started;
+                this.pendingAnnounce = null;
             }
 
             // Start new peers if some died
             int i = MAX_PEERS - activeMap.size();
             for (Map.Entry<InetAddress, Peer> peerEntry : peerMap.entrySet()) {
                 if (activeMap.containsKey(peerEntry.getKey())) continue;
-                new Thread(peerEntry.getValue()).start();
+                try {
+                    peerEntry.getValue().start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
                 activeMap.put(peerEntry.getKey(), peerEntry.getValue());
                 i--;
                 if (i <= 0) break;
@@ -156,6 +175,8 @@ public class PeerManager implements Runnable {
 
             ArrayList<Integer> newPieces =
                 this.torrent.pieceManager.popToAnnounce();
+            ArrayList<DataBlockInfo> receivedBlocks =
+                this.torrent.pieceManager.popToCancel();
 
             Iterator<Map.Entry<InetAddress, Peer>> it =
                 activeMap.entrySet().iterator();
@@ -171,6 +192,11 @@ public class PeerManager implements Runnable {
                     continue;
                 }
 
+                // Cancel the duplicate requests of the endgame
+                if (!receivedBlocks.isEmpty()) {
+                    peer.cancelRequests(receivedBlocks);
+                }
+
                 for (int piece: newPieces) {
                     peer.sendHave(piece);
 
@@ -194,36 +220,31 @@ public class PeerManager implements Runnable {
                     }
                 }
 
-                if (peer.canRequest() && this.state != State.Seeding) {
-                    //LOG.debug("Cannot request to: " + peer);
-
-                    try {
-                        List<DataBlockInfo> infoList =
-                            this.torrent.pieceManager.getFreeBlocks(
-                                    peer.bitfield,
-                                    MAX_QUEUED_REQUESTS);
-
-                        Iterator<DataBlockInfo> iter = infoList.iterator();
-                        while (iter.hasNext()) {
-                            peer.sendRequest(iter.next());
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        peer.invalidate();
-                        //removeBlock
-                    }
+                // Peers also refill their window themselves when they get
+                // a piece, this catches the other cases (new have, ...)
+                if (this.state != State.Seeding) {
+                    peer.expireRequests();
+                    peer.requestBlocks();
                 }
             }
 
             // Announce complete if we got the last piece
             if (newPieces.size() > 0) {
+                resumeDirty = true;
                 if (this.torrent.isComplete()) {
-                    this.state = State.Announcing;
-                    this.trackerManager.announce(Tracker.Event.completed);
+                    this.trackerManager.announceAsync(Tracker.Event.completed);
                     this.state = State.Seeding;
                 }
             }
 
+            long now = System.currentTimeMillis();
+            if (resumeDirty && (now - lastResumeSave >= RESUME_INTERVAL
+                                || this.state == State.Seeding)) {
+                saveResumeData();
+                resumeDirty = false;
+                lastResumeSave = now;
+            }
+
             // Sleep a bit to spare CPU and leave time to send messages to
             // peers
             try {
@@ -238,6 +259,8 @@ public class PeerManager implements Runnable {
        for (Map.Entry<InetAddress, Peer> entry : this.peerMap.entrySet()) {
             entry.getValue().invalidate();
        }
+       this.torrent.pieceManager.flushBuffers();
+       saveResumeData();
 
        this.state = State.Announcing;
        LOG.debug("Announcing \"stopped\" to trackers (this may take a while "
@@ -251,6 +274,15 @@ public class PeerManager implements Runnable {
         this.stopped = true;
     }
 
+    private void saveResumeData() {
+        try {
+            ResumeData.save(this.torrent);
+        } catch (IOException e) {
+            LOG.error("Couldn't save resume record of "
+                      + this.torrent.FILE_NAME + " reason: " + e.toString());
+        }
+    }
+
     public boolean isStopped() {
         return this.stopped;
     }
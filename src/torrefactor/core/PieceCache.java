@@ -0,0 +1,351 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A cache of the valid pieces read to be sent to the peers, shared by all
+ * the torrents.
+ *
+ * When a block is requested, the whole piece is read at once (read-ahead)
+ * since the other blocks of the piece are likely to be requested soon, by
+ * the same peer or by others. The threads sending blocks to the peers use
+ * getCachedBlock(), which doesn't wait for the piece to be read. The pieces are kept until the memory they use
+ * exceeds the capacity, the least recently used ones are then evicted.
+ * Only valid pieces must be read through the cache, their content isn't
+ * expected to change (see invalidate()).
+ */
+public class PieceCache {
+    private static Logger LOG = new Logger();
+    // Maximum number of pieces waiting to be loaded by getCachedBlock()
+    static final int LOAD_QUEUE_SIZE = 64;
+
+    private static PieceCache instance;
+
+    private final long capacity;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    // In access order: the least recently used piece comes first
+    private final LinkedHashMap<Key, byte[]> pieces =
+        new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+    // The pieces being read by getPiece(), with a token identifying the
+    // latest read: a read is only cached if its token is still there, which
+    // invalidate() removes
+    private final HashMap<Key, Object> loading = new HashMap<Key, Object>();
+    private ThreadPoolExecutor loader;
+
+    /**
+     * A piece of the data of a DataManager.
+     */
+    private static final class Key {
+        final DataManager dataManager;
+        final int piece;
+
+        Key (DataManager dataManager, int piece) {
+            this.dataManager = dataManager;
+            this.piece = piece;
+        }
+
+        @Override
+        public boolean equals (Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key key = (Key) obj;
+            return this.dataManager == key.dataManager
+                   && this.piece == key.piece;
+        }
+
+        @Override
+        public int hashCode () {
+            return 31 * System.identityHashCode(this.dataManager) + this.piece;
+        }
+    }
+
+    /**
+     * Returns the PieceCache shared by all the torrents, its capacity is
+     * given by the "ReadCacheSize" property of the Config (in MiB).
+     */
+    public static synchronized PieceCache instance () {
+        if (instance == null) {
+            long capacity = Config.getConfig().getPropertyInt("ReadCacheSize")
+                            * (1L << 20);
+            instance = new PieceCache(capacity);
+        }
+        return instance;
+    }
+
+    /**
+     * Create a new PieceCache.
+     *
+     * @param capacity  the maximum memory used by the cached pieces in
+     *                  bytes, 0 to disable the cache
+     */
+    public PieceCache (long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns true if pieces can be cached.
+     */
+    public boolean isEnabled () {
+        return this.capacity > 0;
+    }
+
+    /**
+     * Returns the given block, from the cache if its piece is cached or
+     * after reading the whole piece otherwise.
+     *
+     * @param dataManager   the DataManager to read the piece from
+     * @param piece         the index of the piece
+     * @param offset        the offset of the block within the piece
+     * @param length        the length of the block
+     * @return a read-only ByteBuffer containing the block
+     * @throws IOException if the piece couldn't be read
+     */
+    public ByteBuffer getBlock (DataManager dataManager, int piece,
+                                int offset, int length)
+    throws IOException {
+        byte[] data = getPiece(dataManager, piece);
+        return ByteBuffer.wrap(data, offset, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the given block if its piece is cached, or null after loading
+     * the piece in the background otherwise so that the following blocks
+     * are found in the cache. The piece isn't loaded if too many pieces are
+     * already being loaded.
+     *
+     * @param dataManager   the DataManager to read the piece from
+     * @param piece         the index of the piece
+     * @param offset        the offset of the block within the piece
+     * @param length        the length of the block
+     * @return a read-only ByteBuffer containing the block or null
+     */
+    public ByteBuffer getCachedBlock (final DataManager dataManager,
+                                      final int piece, int offset,
+                                      int length) {
+        final Key key = new Key(dataManager, piece);
+        final Object token = new Object();
+        synchronized (this) {
+            byte[] data = this.pieces.get(key);
+            if (data != null) {
+                this.hits++;
+                return ByteBuffer.wrap(data, offset, length)
+                       .asReadOnlyBuffer();
+            }
+            this.misses++;
+            if (this.loading.containsKey(key)) {
+                return null;
+            }
+            this.loading.put(key, token);
+        }
+        try {
+            loader().execute(new Runnable() {
+                public void run () {
+                    try {
+                        load(key, token);
+                    } catch (IOException e) {
+                        LOG.error(PieceCache.this, "Could not read piece "
+                                  + piece + ": " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                if (this.loading.get(key) == token) {
+                    this.loading.remove(key);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the content of the given piece, from the cache if it's cached
+     * or after reading it otherwise. The array must not be modified.
+     */
+    private byte[] getPiece (DataManager dataManager, int piece)
+    throws IOException {
+        Key key = new Key(dataManager, piece);
+        Object token = new Object();
+        synchronized (this) {
+            byte[] data = this.pieces.get(key);
+            if (data != null) {
+                this.hits++;
+                return data;
+            }
+            this.misses++;
+            this.loading.put(key, token);
+        }
+        return load(key, token);
+    }
+
+    /**
+     * Reads the piece and caches it unless it was invalidated or read again
+     * meanwhile (see loading).
+     */
+    private byte[] load (Key key, Object token)
+    throws IOException {
+        // Read outside of the lock, the cached pieces can still be sent
+        // meanwhile
+        byte[] data = null;
+        try {
+            data = read(key.dataManager, key.piece);
+        } finally {
+            synchronized (this) {
+                // Otherwise the data may be stale
+                if (this.loading.get(key) == token) {
+                    this.loading.remove(key);
+                    if (data != null) {
+                        insert(key, data);
+                    }
+                }
+            }
+        }
+        return data;
+    }
+
+    private void insert (Key key, byte[] data) {
+        if (data.length > this.capacity) {
+            return;
+        }
+        byte[] previous = this.pieces.put(key, data);
+        if (previous != null) {
+            this.size -= previous.length;
+        }
+        this.size += data.length;
+        Iterator<byte[]> it = this.pieces.values().iterator();
+        while (this.size > this.capacity && it.hasNext()) {
+            this.size -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the executor loading the pieces for getCachedBlock(), with a
+     * single daemon thread.
+     */
+    private synchronized ThreadPoolExecutor loader () {
+        if (this.loader == null) {
+            ThreadFactory factory = new ThreadFactory() {
+                public Thread newThread (Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PieceCache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            this.loader = new ThreadPoolExecutor(1, 1,
+                    0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(LOAD_QUEUE_SIZE),
+                    factory);
+        }
+        return this.loader;
+    }
+
+    /**
+     * Reads the whole piece from the storage.
+     */
+    private static byte[] read (DataManager dataManager, int piece)
+    throws IOException {
+        long begin = (long) piece * dataManager.pieceLength();
+        int length = (int) Math.min(dataManager.pieceLength(),
+                                    dataManager.totalSize() - begin);
+        byte[] data = new byte[length];
+        dataManager.read(begin, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * Removes the piece from the cache, this must be called if its content
+     * may have changed. A read of the piece in progress isn't cached.
+     */
+    public synchronized void invalidate (DataManager dataManager, int piece) {
+        Key key = new Key(dataManager, piece);
+        this.loading.remove(key);
+        byte[] data = this.pieces.remove(key);
+        if (data != null) {
+            this.size -= data.length;
+        }
+    }
+
+    /**
+     * Removes all the pieces of the DataManager from the cache, this must
+     * be called once it's closed so that it isn't kept in memory.
+     */
+    public synchronized void invalidate (DataManager dataManager) {
+        Iterator<Key> keys = this.loading.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().dataManager == dataManager) {
+                keys.remove();
+            }
+        }
+        Iterator<Map.Entry<Key, byte[]>> it =
+            this.pieces.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, byte[]> entry = it.next();
+            if (entry.getKey().dataManager == dataManager) {
+                this.size -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of blocks found in the cache.
+     */
+    public synchronized long hits () {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of blocks for which the piece had to be read.
+     */
+    public synchronized long misses () {
+        return this.misses;
+    }
+
+    /**
+     * Returns the memory used by the cached pieces in bytes.
+     */
+    public synchronized long size () {
+        return this.size;
+    }
+
+    @Override
+    public synchronized String toString () {
+        return "PieceCache: " + this.pieces.size() + " pieces, "
+               + this.size + "/" + this.capacity + " bytes, "
+               + this.hits + " hits, " + this.misses + " misses";
+    }
+}
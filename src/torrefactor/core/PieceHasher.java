@@ -0,0 +1,255 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.Logger;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the SHA1 of the pieces once they're downloaded, out of the threads
+ * receiving them.
+ *
+ * Pieces are hashed by a pool of worker threads shared by all the torrents,
+ * one per processor. Each worker has its own MessageDigest and reads the
+ * piece from the files through its own direct buffer, so pieces are never
+ * copied in the heap. The beginning of a piece may already have been hashed
+ * while it was received (see PieceManager.putBlock()), only the rest is
+ * then read, and nothing is read if the piece is still in its write-back
+ * buffer (see DataManager.bufferPiece()). Submitting a piece never blocks
+ * the caller: once QUEUE_SIZE pieces are waiting, the PieceHasher is
+ * saturated (see isSaturated()) and no more blocks are requested until it
+ * catches up, which slows down the peers sending us pieces faster than we
+ * can check them.
+ */
+public class PieceHasher {
+    private static Logger LOG = new Logger();
+    static final int QUEUE_SIZE = 64; // in pieces
+    static final int BUFFER_SIZE = 1 << 16; // in bytes
+
+    private static PieceHasher instance;
+
+    private final ThreadPoolExecutor executor;
+
+    private static final ThreadLocal<MessageDigest> DIGEST =
+        new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("SHA1");
+                } catch (NoSuchAlgorithmException e) {
+                    return null;
+                }
+            }
+        };
+
+    private static final ThreadLocal<ByteBuffer> BUFFER =
+        new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+        };
+
+    /**
+     * Called with the result of the check of a piece submitted to a
+     * PieceHasher.
+     */
+    public interface Listener {
+        /**
+         * Executed once the piece has been checked, in the thread which
+         * checked it.
+         *
+         * @param piece the index of the piece
+         * @param valid true if the SHA1 of the piece is the expected one
+         */
+        public void onPieceHashed (int piece, boolean valid);
+    }
+
+    /**
+     * Returns the PieceHasher shared by all the torrents.
+     */
+    public static synchronized PieceHasher instance () {
+        if (instance == null) {
+            instance = new PieceHasher(
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return instance;
+    }
+
+    /**
+     * Create a new PieceHasher.
+     *
+     * @param threads   the number of worker threads
+     */
+    public PieceHasher (int threads) {
+        final AtomicInteger count = new AtomicInteger(0);
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread (Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "PieceHasher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        // Not bounded, the blocks already requested must still be checked
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+    }
+
+    /**
+     * Returns true if QUEUE_SIZE pieces or more are waiting to be checked.
+     */
+    public boolean isSaturated () {
+        return this.executor.getQueue().size() >= QUEUE_SIZE;
+    }
+
+    /**
+     * Checks the given piece in a worker thread then tells the listener.
+     *
+     * @param dataManager   the DataManager to read the piece from
+     * @param piece         the index of the piece
+     * @param expected      the expected SHA1 of the piece
+     * @param listener      the listener to call with the result
+     */
+    public void submit (DataManager dataManager, int piece,
+                        byte[] expected, Listener listener) {
+        submit(dataManager, piece, null, 0, expected, listener);
+    }
+
+    /**
+     * Checks the given piece in a worker thread then tells the listener,
+     * the piece is reported as invalid if it can't be checked. The first
+     * bytes of the piece have already been given to digest.
+     *
+     * @param dataManager   the DataManager to read the piece from
+     * @param piece         the index of the piece
+     * @param digest        the SHA1 MessageDigest of the first from bytes of
+     *                      the piece, null to hash the whole piece
+     * @param from          the number of bytes of the piece already hashed
+     * @param expected      the expected SHA1 of the piece
+     * @param listener      the listener to call with the result
+     */
+    public void submit (final DataManager dataManager, final int piece,
+                        final MessageDigest digest, final int from,
+                        final byte[] expected, final Listener listener) {
+        this.executor.execute(new Runnable() {
+            public void run () {
+                boolean valid;
+                try {
+                    valid = check(dataManager, piece, digest, from, expected);
+                } catch (IOException e) {
+                    LOG.error("Could not read piece " + piece + ": "
+                              + e.getMessage());
+                    valid = false;
+                } catch (Throwable e) {
+                    // The piece must not be left as being hashed
+                    LOG.error("Could not check piece " + piece + ": "
+                              + e.toString());
+                    valid = false;
+                }
+                listener.onPieceHashed(piece, valid);
+            }
+        });
+    }
+
+    /**
+     * Checks the given piece in the calling thread.
+     *
+     * @param dataManager   the DataManager to read the piece from
+     * @param piece         the index of the piece
+     * @param expected      the expected SHA1 of the piece
+     * @return true if the SHA1 of the piece is the expected one (or if SHA1
+     *         isn't available)
+     */
+    public static boolean check (DataManager dataManager, int piece,
+                                 byte[] expected)
+    throws IOException {
+        return check(dataManager, piece, null, 0, expected);
+    }
+
+    /**
+     * Checks the given piece in the calling thread, the first bytes of the
+     * piece have already been given to digest.
+     *
+     * @param dataManager   the DataManager to read the piece from
+     * @param piece         the index of the piece
+     * @param digest        the SHA1 MessageDigest of the first from bytes of
+     *                      the piece, null to hash the whole piece
+     * @param from          the number of bytes of the piece already hashed
+     * @param expected      the expected SHA1 of the piece
+     * @return true if the SHA1 of the piece is the expected one (or if SHA1
+     *         isn't available)
+     */
+    public static boolean check (DataManager dataManager, int piece,
+                                 MessageDigest digest, int from,
+                                 byte[] expected)
+    throws IOException {
+        if (digest == null) {
+            digest = DIGEST.get();
+            from = 0;
+            if (digest != null) digest.reset();
+        }
+        if (digest == null) {
+            //Assume the piece is correct since we have no way of checking
+            LOG.warning("Piece " + piece + " could not be checked and"
+                        + " may potentially be invalid");
+            return true;
+        }
+        ByteBuffer buffer = BUFFER.get();
+        long begin = (long) piece * dataManager.pieceLength();
+        int length = (int) Math.min(dataManager.pieceLength(),
+                                    dataManager.totalSize() - begin);
+
+        if (from == length) {
+            return MessageDigest.isEqual(digest.digest(), expected);
+        }
+        // The piece hasn't been written yet, hash it from memory
+        byte[] pieceBuffer = dataManager.pieceBuffer(piece);
+        if (pieceBuffer != null) {
+            digest.update(pieceBuffer, from, length - from);
+            return MessageDigest.isEqual(digest.digest(), expected);
+        }
+        long position = begin + from;
+        long end = begin + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            dataManager.read(position, buffer);
+            position += buffer.position();
+            buffer.flip();
+            digest.update(buffer);
+        }
+        return MessageDigest.isEqual(digest.digest(), expected);
+    }
+}
@@ -31,25 +31,63 @@ import torrefactor.core.*;
 import torrefactor.util.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.security.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class keeps track of the download blocks of datas in pieces,
  * check the SHA1 of pieces when they've finished downloading and
  * can suggests free blocks to download.
  *
- * Internally, it uses DataManager for disk I/O.
+ * Internally, it uses DataManager for disk I/O and the PieceHasher to check
+ * the pieces out of the threads of the peers.
  */
-public class PieceManager implements Serializable {
+public class PieceManager
+implements Serializable, PieceHasher.Listener, PieceRecheck.Listener {
     private static Logger LOG = new Logger();
     //Map of the downloaded blocks
     public IntervalMap intervalMap;
-    //map of the requested but not yet downloaded blocks
-    private transient SawToothIntervalMap requestedMap;
+    //requested but not yet downloaded blocks
+    private transient RequestLedger requestLedger;
+    //decides which pieces are requested first
+    private transient PiecePicker piecePicker;
 
     private DataManager dataManager;
-    public byte[] bitfield;
+    public Bitfield bitfield;
+    // Pieces downloaded which are being checked by the PieceHasher
+    private transient Bitfield hashing;
+    // SHA1 of the beginning of the pieces being downloaded, see putBlock().
+    // They aren't saved in the resume records: after a restart, the
+    // PieceHasher reads the whole piece from the disk.
+    private transient HashMap<Integer, PieceDigest> pieceDigests;
+
+    /**
+     * The SHA1 MessageDigest of the first blocks of a piece, fed with the
+     * blocks as they arrive as long as they arrive in order. The fields are
+     * guarded by the PieceDigest itself, not by the PieceManager.
+     */
+    private static class PieceDigest {
+        final MessageDigest digest;
+        int hashed = 0; // in bytes
+        // Set once the digest is given to the PieceHasher, it must not be
+        // updated anymore
+        boolean closed = false;
+
+        PieceDigest (MessageDigest digest) {
+            this.digest = digest;
+        }
+    }
+    // The recheck in progress, see recheckAll()
+    private transient volatile PieceRecheck recheck;
+    // The allocation of the files, set until allocate() is done, see
+    // DataManager.setAllocation()
+    private transient volatile Preallocator allocation;
+    // Held by allocate() so that only one allocation runs at a time
+    private transient Object allocateLock = new Object();
+    // Number of bytes in the valid pieces, kept up to date by onPieceHashed()
+    private final AtomicLong bytesDone = new AtomicLong(0);
     byte[] digestArray;
 
 
@@ -57,161 +95,762 @@ public class PieceManager implements Serializable {
     transient Object pieceToAnnounceLock = new Object();
     ArrayList<Integer> pieceToAnnounce = new ArrayList<Integer>();
 
+    // True once every missing block has been requested at least once, see
+    // getEndgameBlocks().
+    private transient volatile boolean endgame;
+    // Blocks received during the endgame for which cancel messages should be
+    // sent to the other peers.
+    private transient Object blockToCancelLock = new Object();
+    private transient ArrayList<DataBlockInfo> blockToCancel =
+        new ArrayList<DataBlockInfo>();
+
     //Recommended by http://wiki.theory.org/BitTorrentSpecification#request:_.3Clen.3D0013.3E.3Cid.3D6.3E.3Cindex.3E.3Cbegin.3E.3Clength.3E
     static final int BLOCK_SIZE = (1 << 14); // in bytes
-
-    static final int MAX_REQUESTS = 50;
+    // Blocks received from the peers, given back once written with
+    // putBlock()
+    static final BufferPool BLOCK_POOL = new BufferPool(BLOCK_SIZE, 1024);
 
     public PieceManager(List<Pair<File, Long>> files,
                         int pieceLength, byte[] _digestArray)
     throws FileNotFoundException, IOException {
-        this.dataManager = new DataManager(files, pieceLength);
+        this.dataManager = new DataManager(
+                files, pieceLength, Config.getConfig().getProperty("Storage"),
+                FileHandlePool.instance());
+        this.dataManager.setWriteBuffers(WriteBuffers.instance());
+        this.dataManager.setAllocation(
+                Config.getConfig().getProperty("Allocation"));
+        if (this.dataManager.needsAllocation()) {
+            this.allocation = new Preallocator(this.dataManager);
+        }
         this.intervalMap = new IntervalMap();
-        this.requestedMap = new SawToothIntervalMap(MAX_REQUESTS);
-        int fieldLength = (piecesNumber() - 1)/8 + 1;
-        this.bitfield = new byte[fieldLength];
-        Arrays.fill(this.bitfield, (byte) 0);
+        this.requestLedger = new RequestLedger(requestTimeout());
+        this.piecePicker = new RarestFirstPiecePicker(piecesNumber());
+        this.bitfield = new Bitfield(piecesNumber());
+        this.hashing = new Bitfield(piecesNumber());
+        this.pieceDigests = new HashMap<Integer, PieceDigest>();
         this.digestArray = _digestArray;
     }
 
+    /**
+     * Returns the time after which a request expires in ns, from the
+     * "RequestTimeout" property of the Config (in seconds).
+     */
+    private static long requestTimeout() {
+        return Config.getConfig().getPropertyInt("RequestTimeout")
+               * 1000000000L;
+    }
+
     /**
      * Try to find numBlocks free blocks available in the peerBitfield and
      * return a List of their DataBlockInfo(which size is between 0 and n)
+     * The pieces are tried in the order given by the PiecePicker.
+     * The blocks returned are recorded as requested from owner until they
+     * are downloaded, the requests expire or releaseRequests(owner) is
+     * called. No block is returned until the files are allocated (see
+     * allocate()) nor while recheckAll() runs, since it would remove the
+     * blocks of the pieces it finds invalid, nor while the PieceHasher is
+     * saturated.
      */
-    public synchronized List<DataBlockInfo> getFreeBlocks(byte[] peerBitfield, int numBlocks)
+    public synchronized List<DataBlockInfo> getFreeBlocks(Bitfield peerBitfield,
+                                                          int numBlocks,
+                                                          Object owner)
     throws IOException {
          //TODO: should we return a smaller size if we already have part of
          //the block?
         List<DataBlockInfo> infoList = new ArrayList<DataBlockInfo>();
-        if (numBlocks == 0) return infoList;
+        if (numBlocks == 0 || this.allocation != null
+            || this.recheck != null || PieceHasher.instance().isSaturated()) {
+            return infoList;
+        }
+
+        long now = System.nanoTime();
+        List<DataBlockInfo> expired = this.requestLedger.expire(now);
+        if (!expired.isEmpty()) {
+            LOG.debug(this, expired.size() + " requests expired");
+        }
 
-        for (int i = 0; i < 8*peerBitfield.length && infoList.size() < numBlocks; i++) {
-            if (!ByteArrays.isBitSet(peerBitfield, i)) continue;
-            long pieceBegin = i * this.dataManager.pieceLength();
-            long pieceEnd = pieceBegin + this.dataManager.pieceLength() - 1;
+        int pieceLength = this.dataManager.pieceLength();
+        for (int rank = 0; rank < piecesNumber() && infoList.size() < numBlocks; rank++) {
+            int i = this.piecePicker.pieceAt(rank);
+            if (!peerBitfield.get(i) || this.bitfield.get(i)) {
+                continue;
+            }
+            long pieceBegin = (long) i * pieceLength;
             // Last block is smaller than the other
-            pieceEnd = Math.min(pieceEnd, this.dataManager.totalSize() - 1);
-
-            long offset = nextFreeByte(pieceBegin);
-            while (infoList.size() < numBlocks) {
-                if (offset >= this.dataManager.totalSize()) {
-                    if (pieceBegin == 0) {
-                        LOG.info("Everything has been requested at least once, forgetting about old requests");
-                        this.requestedMap.clearFirstHalf();
-                    }
-                    return infoList;
+            long pieceEnd = Math.min(pieceBegin + pieceLength,
+                                     this.dataManager.totalSize());
+
+            long offset = this.intervalMap.nextFreePoint(pieceBegin);
+            while (offset < pieceEnd && infoList.size() < numBlocks) {
+                // Make sure the block size is not past the piece end or we might get dropped by the peer
+                int blockSize = (int) Math.min(BLOCK_SIZE, pieceEnd - offset);
+                int blockOffset = (int) (offset - pieceBegin);
+                if (!this.requestLedger.contains(i, blockOffset)) {
+                    DataBlockInfo info =
+                        new DataBlockInfo(i, blockOffset, blockSize);
+                    infoList.add(info);
+                    this.requestLedger.add(info, owner, now);
+                    LOG.debug(this, "Requested block at piece: " + i + " offset: " + blockOffset
+                                             + " length: " + blockSize);
                 }
-                if (offset > pieceEnd) {
-                    // "- 1" because of the i++ in the for loop
-                    i = (int) (offset / this.dataManager.pieceLength()) - 1;
-                    break;
+                offset = this.intervalMap.nextFreePoint(offset + blockSize);
+            }
+        }
+
+        boolean allRequested = infoList.size() < numBlocks && !hasFreeBlock();
+        if (allRequested && !this.endgame) {
+            LOG.info("Everything has been requested at least once, entering endgame");
+        }
+        this.endgame = allRequested;
+        return infoList;
+    }
+
+    /**
+     * Returns true if some block we don't have is not requested.
+     */
+    private boolean hasFreeBlock() {
+        int pieceLength = this.dataManager.pieceLength();
+        for (int i = this.bitfield.nextClearBit(0); i < piecesNumber();
+             i = this.bitfield.nextClearBit(i + 1)) {
+            long pieceBegin = (long) i * pieceLength;
+            long pieceEnd = Math.min(pieceBegin + pieceLength,
+                                     this.dataManager.totalSize());
+
+            long offset = this.intervalMap.nextFreePoint(pieceBegin);
+            while (offset < pieceEnd) {
+                if (!this.requestLedger.contains(i, (int) (offset - pieceBegin))) {
+                    return true;
                 }
-                // Make sure the block size is not past the piece end or we might get dropped by the peer
-                int blockSize = Math.min(BLOCK_SIZE, (int) (pieceEnd - offset) + 1);
-                infoList.add(new DataBlockInfo(i, (int) (offset % this.dataManager.pieceLength()), blockSize));
-                this.requestedMap.addInterval(offset, blockSize);
-                LOG.debug(this, "Requested block at piece: " + i + " offset: " + (offset % this.dataManager.pieceLength())
-                                         + " length: " + blockSize);
-
-                offset += blockSize;
-                offset = nextFreeByte(offset);
+                int blockSize = (int) Math.min(BLOCK_SIZE, pieceEnd - offset);
+                offset = this.intervalMap.nextFreePoint(offset + blockSize);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the requests made to owner so that their blocks can be
+     * requested from other peers. This must be called when a peer chokes us
+     * or disconnects.
+     */
+    public synchronized void releaseRequests(Object owner) {
+        int count = this.requestLedger.removeOwner(owner);
+        if (count > 0) {
+            LOG.debug(this, count + " requests released from " + owner);
+        }
+    }
+
+    /**
+     * Returns true if every missing block has been requested at least once.
+     * Peers should then use getEndgameBlocks() to fill their request window.
+     */
+    public boolean isEndgame() {
+        return this.endgame;
+    }
+
+    /**
+     * Returns at most numBlocks blocks which have been requested but not
+     * downloaded yet, available in the peerBitfield and not in pending.
+     * During the endgame, requesting the same block from several peers
+     * avoids waiting for the slowest one. The DataBlockInfo returned are
+     * the same as the ones given by getFreeBlocks() so that the duplicates
+     * can be cancelled once a block is received (see popToCancel()).
+     *
+     * @param peerBitfield  the bitfield of the peer
+     * @param numBlocks     the maximum number of blocks to return
+     * @param pending       the blocks already requested from this peer
+     */
+    public synchronized List<DataBlockInfo> getEndgameBlocks(
+            Bitfield peerBitfield, int numBlocks,
+            Collection<DataBlockInfo> pending) {
+        List<DataBlockInfo> infoList = new ArrayList<DataBlockInfo>();
+        if (numBlocks == 0 || !this.endgame) return infoList;
+
+        int pieceLength = this.dataManager.pieceLength();
+        for (int rank = 0; rank < piecesNumber() && infoList.size() < numBlocks; rank++) {
+            int i = this.piecePicker.pieceAt(rank);
+            if (!peerBitfield.get(i) || this.bitfield.get(i)) {
+                continue;
+            }
+            long pieceBegin = (long) i * pieceLength;
+            long pieceEnd = Math.min(pieceBegin + pieceLength,
+                                     this.dataManager.totalSize());
+
+            long offset = this.intervalMap.nextFreePoint(pieceBegin);
+            while (offset < pieceEnd && infoList.size() < numBlocks) {
+                int blockSize = (int) Math.min(BLOCK_SIZE, pieceEnd - offset);
+                DataBlockInfo info = new DataBlockInfo(
+                        i, (int) (offset - pieceBegin), blockSize);
+                if (!pending.contains(info)) {
+                    infoList.add(info);
+                }
+                offset = this.intervalMap.nextFreePoint(offset + blockSize);
             }
         }
         return infoList;
     }
 
     /**
-     * Return the offset of the next free byte not contained
-     * in either the map of downloaded or the map of requested blocks
+     * Sets the PiecePicker deciding which pieces are requested first. By
+     * default, a RarestFirstPiecePicker is used. It must be set before any
+     * peer is added.
      */
-    private long nextFreeByte(long offset) {
-        long reqOffset = 0;
-        do {
-            reqOffset = this.requestedMap.nextFreePoint(offset);
-            offset = this.intervalMap.nextFreePoint(reqOffset);
-        } while (reqOffset != offset);
-        return offset;
+    public synchronized void setPiecePicker(PiecePicker piecePicker) {
+        this.piecePicker = piecePicker;
     }
 
     /**
-     * Return the requested block if it's available, null otherwise
+     * Tells the PiecePicker that a peer has the pieces of the given bitfield.
+     */
+    public synchronized void addPeerBitfield(Bitfield bitfield) {
+        this.piecePicker.addBitfield(bitfield);
+    }
+
+    /**
+     * Tells the PiecePicker that a peer with the given bitfield went away.
+     */
+    public synchronized void removePeerBitfield(Bitfield bitfield) {
+        this.piecePicker.removeBitfield(bitfield);
+    }
+
+    /**
+     * Tells the PiecePicker that a peer got a new piece.
+     */
+    public synchronized void addPeerPiece(int piece) {
+        this.piecePicker.addPiece(piece);
+    }
+
+    /**
+     * Return the requested block if its piece is valid, null otherwise
      */
     public byte[] getBlock(int piece, int offset, int length)
     throws IOException {
-        long begin = piece*this.dataManager.pieceLength() + offset;
-        if (!this.intervalMap.containsInterval(begin, length)) {
+        long begin = (long) piece * this.dataManager.pieceLength() + offset;
+        if (!this.bitfield.get(piece)
+            || !this.intervalMap.containsInterval(begin, length)) {
             return null;
         }
         return this.dataManager.getBlock(piece, offset, length);
     }
 
+    /**
+     * Returns the regions of the files covering the given block or null if
+     * its piece isn't valid. See DataManager.getFileRegions().
+     *
+     * @param piece     the index of the piece
+     * @param offset    the offset of the block within the piece
+     * @param length    the length of the block
+     */
+    public FileRegion[] getBlockRegions(int piece, int offset, int length) {
+        long begin = (long) piece * this.dataManager.pieceLength() + offset;
+        if (!this.bitfield.get(piece)
+            || !this.intervalMap.containsInterval(begin, length)) {
+            return null;
+        }
+        return this.dataManager.getFileRegions(piece, offset, length);
+    }
+
+    /**
+     * Returns true if the data is stored in files, getBlockRegions() can
+     * then be used to send the blocks without copying them.
+     */
+    public boolean isFileBacked() {
+        return this.dataManager.storage() instanceof FileStorage;
+    }
+
+    /**
+     * Returns true if the blocks sent to the peers should be looked up in
+     * the PieceCache (see getCachedBlock()) before being sent straight from
+     * the files (see getBlockRegions()).
+     */
+    public boolean isReadCacheEnabled() {
+        return PieceCache.instance().isEnabled();
+    }
+
+    /**
+     * Returns the given block from the PieceCache, or null if its piece
+     * isn't valid or isn't cached yet (see PieceCache.getCachedBlock()).
+     *
+     * @param piece     the index of the piece
+     * @param offset    the offset of the block within the piece
+     * @param length    the length of the block
+     */
+    public ByteBuffer getCachedBlock(int piece, int offset, int length) {
+        if (!this.bitfield.get(piece) || offset < 0 || length <= 0
+            || offset + length > pieceSize(piece)) {
+            return null;
+        }
+        return PieceCache.instance().getCachedBlock(this.dataManager, piece,
+                                                    offset, length);
+    }
+
     /**
      * Write the array blockArray to piece "piece" with offset "offset" and add
      * it to the intervalMap if we haven't wrote it previously.
-     * checkPiece() will be called and thus the bitfield might be updated.
+     * Once all the blocks of the piece are written, it is checked by the
+     * PieceHasher and the bitfield will be updated if it is valid (see
+     * onPieceHashed()).
+     *
+     * The blocks received in order from the beginning of the piece are
+     * hashed right away, outside of the lock of the PieceManager, so that
+     * the PieceHasher only has to read the blocks which arrived out of order
+     * from the disk.
+     *
+     * The blocks of a piece of which nothing is on the disk yet are kept in
+     * a write-back buffer of the DataManager while there's enough memory:
+     * the piece is then hashed from memory and written with one write per
+     * file once it is valid (see onPieceHashed()).
      */
-    public synchronized void putBlock(int piece, int offset, byte[] blockArray)
+    public void putBlock(int piece, int offset, byte[] blockArray)
     throws IOException {
-        long begin = piece * this.dataManager.pieceLength() + offset;
-        if (this.intervalMap.containsInterval(begin, blockArray.length)) {
-            LOG.warning(this, "Already got block at " + begin + " with length " + blockArray.length);
-            return;
+        boolean complete;
+        PieceDigest pieceDigest;
+        synchronized (this) {
+            long begin = (long) piece * this.dataManager.pieceLength() + offset;
+            if (this.intervalMap.containsInterval(begin, blockArray.length)) {
+                LOG.warning(this, "Already got block at " + begin + " with length " + blockArray.length);
+                return;
+            }
+            long pieceBegin = (long) piece * this.dataManager.pieceLength();
+            if (!this.intervalMap.intersects(pieceBegin, pieceSize(piece))) {
+                this.dataManager.bufferPiece(piece);
+            }
+            this.intervalMap.addInterval(begin, blockArray.length);
+            this.dataManager.putBlock(piece, offset, blockArray);
+            this.requestLedger.remove(piece, offset);
+            if (this.endgame) {
+                synchronized (this.blockToCancelLock) {
+                    this.blockToCancel.add(
+                            new DataBlockInfo(piece, offset, blockArray.length));
+                }
+            }
+            pieceDigest = pieceDigest(piece);
+            complete = isPieceDownloaded(piece) && this.hashing.set(piece);
+            if (complete) this.pieceDigests.remove(piece);
         }
-        this.intervalMap.addInterval(begin, blockArray.length);
-        this.dataManager.putBlock(piece, offset, blockArray);
-        try {
-            checkPiece(piece);
-        } catch (NoSuchAlgorithmException e) {
-            //Assume the piece is correct since we have no way of checking
-            LOG.warning(this, "Piece + " + piece + " could not be checked and"
-                                     + "may potentially be invalid");
-            LOG.warning(this, e.toString());
+        // Hash outside of the lock, the PieceHasher may use this thread
+        MessageDigest digest = null;
+        int hashed = 0;
+        if (pieceDigest != null) {
+            synchronized (pieceDigest) {
+                updateDigest(pieceDigest, offset, blockArray);
+                if (complete) {
+                    pieceDigest.closed = true;
+                    digest = pieceDigest.digest;
+                    hashed = pieceDigest.hashed;
+                }
+            }
+        }
+        if (complete) {
+            PieceHasher.instance().submit(this.dataManager, piece,
+                                          digest, hashed,
+                                          expectedDigest(piece), this);
         }
     }
 
+    /**
+     * Returns the PieceDigest of the piece, creating it if necessary, or
+     * null if SHA1 isn't available.
+     */
+    private PieceDigest pieceDigest(int piece) {
+        PieceDigest pieceDigest = this.pieceDigests.get(piece);
+        if (pieceDigest == null) {
+            try {
+                pieceDigest = new PieceDigest(
+                        MessageDigest.getInstance("SHA1"));
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+            this.pieceDigests.put(piece, pieceDigest);
+        }
+        return pieceDigest;
+    }
+
+    /**
+     * Feeds the block to the SHA1 of its piece if it follows the blocks
+     * already hashed. Must be called with the lock of pieceDigest held.
+     * A block which arrives before the blocks preceding it are hashed is
+     * skipped, the PieceHasher then reads it from the disk.
+     */
+    private static void updateDigest(PieceDigest pieceDigest, int offset,
+                                     byte[] blockArray) {
+        if (!pieceDigest.closed && offset == pieceDigest.hashed) {
+            pieceDigest.digest.update(blockArray);
+            pieceDigest.hashed += blockArray.length;
+        }
+    }
+
+    /**
+     * Returns the length of the given piece.
+     */
+    private int pieceSize(int piece) {
+        long pieceBegin = (long) piece * this.dataManager.pieceLength();
+        return (int) Math.min(this.dataManager.pieceLength(),
+                              this.dataManager.totalSize() - pieceBegin);
+    }
+
+    /**
+     * Returns true if all the blocks of the piece have been written.
+     */
+    private boolean isPieceDownloaded(int piece) {
+        long pieceBegin = (long) piece * this.dataManager.pieceLength();
+        return this.intervalMap.containsInterval(pieceBegin, pieceSize(piece));
+    }
+
+    /**
+     * Returns the SHA1 the given piece should have.
+     */
+    private byte[] expectedDigest(int piece) {
+        byte[] expectedDigest = new byte[20];
+        System.arraycopy(digestArray, 20*piece, expectedDigest, 0, 20);
+        return expectedDigest;
+    }
+
     /**
      * If the piece is completely downloaded and valid, add it to the
      * bitfield and return true.
-     * Otherwise, discard the blocks it's made of and return false
+     * Otherwise, discard the blocks it's made of and return false.
+     * Unlike putBlock(), the piece is checked in the calling thread.
      */
     public boolean checkPiece(int piece)
-    throws IOException, NoSuchAlgorithmException {
-        long pieceBegin = piece * this.dataManager.pieceLength();
-        int pieceLength = this.dataManager.pieceLength();
+    throws IOException {
+        if (!isPieceDownloaded(piece)) {
+            return false;
+        }
+        boolean valid = PieceHasher.check(this.dataManager, piece,
+                                          expectedDigest(piece));
+        onPieceHashed(piece, valid);
+        return valid;
+    }
 
-        // Last piece has different size
-        if (piece == piecesNumber() - 1) {
-            pieceLength = (int) (this.dataManager.totalSize() - pieceBegin);
+    /**
+     * Called by the PieceHasher once a piece has been checked: write it if
+     * it's in a write-back buffer and add it to the bitfield and to the
+     * pieces to announce if it is valid, discard the blocks it's made of
+     * otherwise.
+     */
+    public void onPieceHashed(int piece, boolean valid) {
+        // Written outside of the lock, the other pieces can still be
+        // received meanwhile
+        if (valid) {
+            try {
+                this.dataManager.writePiece(piece);
+            } catch (IOException e) {
+                LOG.error(this, "Could not write piece " + piece + ": "
+                          + e.getMessage());
+                valid = false;
+            }
+        } else {
+            this.dataManager.dropPiece(piece);
         }
 
-        if (!this.intervalMap.containsInterval(pieceBegin, pieceLength)) {
-            return false;
+        synchronized (this) {
+            this.hashing.clear(piece);
+            this.pieceDigests.remove(piece);
+            if (!valid) {
+                long pieceBegin =
+                    (long) piece * this.dataManager.pieceLength();
+                this.intervalMap.removeIntervals(pieceBegin, pieceSize(piece));
+                LOG.error(this, "Invalid piece " + piece);
+                return;
+            }
+            if (!this.bitfield.set(piece)) {
+                return;
+            }
+            this.bytesDone.addAndGet(pieceSize(piece));
+            LOG.info(this, "Valid piece " + piece);
         }
 
-        byte[] expectedDigest = new byte[20];
-        System.arraycopy(digestArray, 20*piece, expectedDigest, 0, 20);
-        byte[] pieceArray = this.dataManager.getPiece(piece);
-        byte[] digest = MessageDigest.getInstance("SHA1").digest(pieceArray);
-        if (!Arrays.equals(digest, expectedDigest)) {
-            this.intervalMap.removeIntervals(pieceBegin, pieceLength);
-            LOG.error(this, "Invalid piece " + piece + " got: " + new String(digest) + " expected " + new String(expectedDigest));
-            return false;
+        synchronized (this.pieceToAnnounceLock) {
+            this.pieceToAnnounce.add(piece);
+        }
+    }
+
+    /**
+     * Writes the blocks of the incomplete pieces kept in write-back buffers
+     * and flushes the storage, so that they aren't lost when the torrent is
+     * stopped.
+     */
+    public synchronized void flushBuffers() {
+        for (int piece: this.dataManager.bufferedPieces()) {
+            // The complete pieces are written once they are checked
+            if (this.hashing.get(piece)) continue;
+            try {
+                this.dataManager.writePiece(piece);
+            } catch (IOException e) {
+                LOG.error(this, "Could not write piece " + piece + ": "
+                          + e.getMessage());
+                long pieceBegin =
+                    (long) piece * this.dataManager.pieceLength();
+                this.intervalMap.removeIntervals(pieceBegin, pieceSize(piece));
+                this.pieceDigests.remove(piece);
+            }
+        }
+        try {
+            this.dataManager.flush();
+        } catch (IOException e) {
+            LOG.error(this, "Could not flush the data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Releases what the torrent holds once it's stopped for good: its
+     * pieces are removed from the PieceCache and its files are closed. The
+     * write-back buffers must have been written first, see flushBuffers().
+     */
+    public void close() {
+        PieceCache.instance().invalidate(this.dataManager);
+        try {
+            this.dataManager.close();
+        } catch (IOException e) {
+            LOG.error(this, "Could not close the files: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the downloaded intervals to save in a resume record, as
+     * returned by IntervalMap.snapshot(), without the pieces kept in
+     * write-back buffers since their blocks aren't on the disk yet.
+     */
+    public long[] savedIntervals() {
+        // Read the buffered pieces after the intervals: a piece is buffered
+        // before its first block is added to the intervals
+        long[] intervals = this.intervalMap.snapshot();
+        List<Integer> buffered = this.dataManager.bufferedPieces();
+        if (buffered.isEmpty()) {
+            return intervals;
+        }
+        IntervalMap map = new IntervalMap();
+        for (int i = 0; i + 1 < intervals.length; i += 2) {
+            map.addInterval(intervals[i], intervals[i + 1] - intervals[i] + 1);
+        }
+        for (int piece: buffered) {
+            long pieceBegin = (long) piece * this.dataManager.pieceLength();
+            map.removeIntervals(pieceBegin, pieceSize(piece));
+        }
+        return map.snapshot();
+    }
+
+    /**
+     * Restores the state saved in a resume record (see ResumeData): the
+     * verified pieces are trusted without being checked again and the
+     * downloaded intervals are given as returned by IntervalMap.snapshot().
+     *
+     * A piece fully downloaded but not verified (the record was saved while
+     * it was being hashed) is given to the PieceHasher, it would never be
+     * requested again otherwise.
+     */
+    public void restore(Bitfield verified, long[] intervals) {
+        List<Integer> pieces = new ArrayList<Integer>();
+        synchronized (this) {
+            for (int i = 0; i + 1 < intervals.length; i += 2) {
+                this.intervalMap.addInterval(intervals[i],
+                        intervals[i + 1] - intervals[i] + 1);
+            }
+            for (int piece = verified.nextSetBit(0); piece >= 0;
+                 piece = verified.nextSetBit(piece + 1)) {
+                long pieceBegin = (long) piece * this.dataManager.pieceLength();
+                this.intervalMap.addInterval(pieceBegin, pieceSize(piece));
+                if (this.bitfield.set(piece)) {
+                    this.bytesDone.addAndGet(pieceSize(piece));
+                }
+            }
+            for (int piece = 0; piece < piecesNumber(); piece++) {
+                if (!verified.get(piece) && isPieceDownloaded(piece)
+                    && this.hashing.set(piece)) {
+                    pieces.add(piece);
+                }
+            }
+        }
+        for (int piece: pieces) {
+            PieceHasher.instance().submit(this.dataManager, piece,
+                                          expectedDigest(piece), this);
+        }
+    }
+
+    /**
+     * Checks again the pieces overlapping the bytes between begin and
+     * begin + length - 1 of the torrent, used when a file changed since the
+     * resume record was written. The pieces are removed from the bitfield
+     * and the downloaded ones are given to the PieceHasher (see
+     * onPieceHashed()).
+     */
+    public void recheck(long begin, long length) {
+        if (length <= 0) return;
+        List<Integer> pieces = new ArrayList<Integer>();
+        synchronized (this) {
+            int pieceLength = this.dataManager.pieceLength();
+            int first = (int) (begin / pieceLength);
+            int last = (int) ((begin + length - 1) / pieceLength);
+            for (int piece = first; piece <= last; piece++) {
+                if (this.bitfield.clear(piece)) {
+                    this.bytesDone.addAndGet(-pieceSize(piece));
+                    PieceCache.instance().invalidate(this.dataManager, piece);
+                }
+                if (isPieceDownloaded(piece) && this.hashing.set(piece)) {
+                    pieces.add(piece);
+                }
+            }
+        }
+        LOG.info(this, "Rechecking " + pieces.size() + " pieces");
+        for (int piece: pieces) {
+            PieceHasher.instance().submit(this.dataManager, piece,
+                                          expectedDigest(piece), this);
+        }
+    }
+
+    /**
+     * Checks all the pieces against their SHA1 in parallel and returns once
+     * they have been checked: the valid pieces are added to the bitfield and
+     * the intervalMap, the others are removed from them. This is meant to be
+     * used when the torrent is stopped, to find out which pieces of existing
+     * data we already have.
+     *
+     * @param rate  the maximum number of bytes read per second, 0 for no
+     *              limit
+     */
+    public void recheckAll(long rate) {
+        PieceRecheck recheck = new PieceRecheck(this.dataManager,
+                this.digestArray, 0, piecesNumber(), rate, this);
+        this.recheck = recheck;
+        try {
+            recheck.run();
+        } finally {
+            this.recheck = null;
+        }
+    }
+
+    /**
+     * Returns true if the files must be allocated with allocate() before
+     * blocks can be downloaded.
+     */
+    public boolean needsAllocation() {
+        return this.allocation != null;
+    }
+
+    /**
+     * Allocates the files in full and returns once they are allocated, the
+     * blocks can then be requested. Does nothing if the files don't need to
+     * be allocated, see DataManager.setAllocation(). If the allocation is
+     * cancelled (see cancelAllocation()), it is left to the next call.
+     */
+    public void allocate() {
+        synchronized (this.allocateLock) {
+            Preallocator allocation = this.allocation;
+            if (allocation == null) {
+                return;
+            }
+            allocation.run();
+            if (allocation.isCancelled()) {
+                // Still no block must be written before it's done
+                this.allocation = new Preallocator(this.dataManager);
+            } else {
+                this.allocation = null;
+            }
+        }
+    }
+
+    /**
+     * Stops the allocate() in progress if any.
+     */
+    public void cancelAllocation() {
+        Preallocator allocation = this.allocation;
+        if (allocation != null) {
+            allocation.cancel();
+        }
+    }
+
+    /**
+     * Returns the progress of allocate() between 0 and 1, or -1 if the
+     * files are allocated.
+     */
+    public double allocationProgress() {
+        Preallocator allocation = this.allocation;
+        if (allocation == null) {
+            return -1;
+        }
+        long total = allocation.total();
+        return total == 0 ? 0 : (double) allocation.allocated() / total;
+    }
+
+    public int filesNumber() {
+        return this.dataManager.filesNumber();
+    }
+
+    /**
+     * Returns the priority of the file, see DataManager.setFilePriority().
+     */
+    public int filePriority(int file) {
+        return this.dataManager.filePriority(file);
+    }
+
+    /**
+     * Sets the priority of the file, a file with a priority of 0 isn't
+     * allocated. See DataManager.setFilePriority().
+     */
+    public void setFilePriority(int file, int priority) {
+        this.dataManager.setFilePriority(file, priority);
+    }
+
+    /**
+     * Stops the recheckAll() in progress if any, the pieces not checked yet
+     * are left as they are.
+     */
+    public void cancelRecheck() {
+        PieceRecheck recheck = this.recheck;
+        if (recheck != null) {
+            recheck.cancel();
         }
-        ByteArrays.setBit(bitfield, piece, 1);
-        LOG.info(this, "Valid piece " + piece);
+    }
+
+    /**
+     * Returns the progress of recheckAll() between 0 and 1, or -1 if no
+     * recheck is in progress.
+     */
+    public double recheckProgress() {
+        PieceRecheck recheck = this.recheck;
+        if (recheck == null) {
+            return -1;
+        }
+        return (double) recheck.checked() / recheck.total();
+    }
 
+    /**
+     * Called by the PieceRecheck once a piece has been checked.
+     */
+    public synchronized void onPieceRechecked(int piece, boolean valid) {
+        long pieceBegin = (long) piece * this.dataManager.pieceLength();
+        if (!valid) {
+            if (this.bitfield.clear(piece)) {
+                this.bytesDone.addAndGet(-pieceSize(piece));
+                PieceCache.instance().invalidate(this.dataManager, piece);
+            }
+            this.intervalMap.removeIntervals(pieceBegin, pieceSize(piece));
+            return;
+        }
+        this.intervalMap.addInterval(pieceBegin, pieceSize(piece));
+        if (!this.bitfield.set(piece)) {
+            return;
+        }
+        this.bytesDone.addAndGet(pieceSize(piece));
         synchronized (this.pieceToAnnounceLock) {
             this.pieceToAnnounce.add(piece);
         }
-        
-        return true;
+    }
+
+    /**
+     * Returns true if some of the files already contained data when the
+     * torrent was created, see DataManager.hadData().
+     */
+    public boolean hadData() {
+        return this.dataManager.hadData();
     }
 
     /**
      * Returns true if we got all the pieces
      */
     public boolean isComplete() {
-        return ByteArrays.isComplete(this.bitfield, piecesNumber());
+        return this.bitfield.isComplete();
     }
 
     /**
@@ -225,7 +864,21 @@ public class PieceManager implements Serializable {
      * Returns the number of downloaded pieces of the torrent
      */
     public int piecesDownloaded() {
-        return ByteArrays.done(this.bitfield);
+        return this.bitfield.cardinality();
+    }
+
+    /**
+     * Returns the number of bytes of the valid pieces.
+     */
+    public long bytesDone() {
+        return this.bytesDone.get();
+    }
+
+    /**
+     * Returns the number of bytes of the pieces we still have to download.
+     */
+    public long bytesLeft() {
+        return this.dataManager.totalSize() - this.bytesDone.get();
     }
 
     /**
@@ -249,6 +902,19 @@ public class PieceManager implements Serializable {
         return list;
     }
 
+    /**
+     * Returns and clear the list of blocks received during the endgame which
+     * may still be requested from other peers.
+     */
+    public ArrayList<DataBlockInfo> popToCancel () {
+        ArrayList<DataBlockInfo> list;
+        synchronized (this.blockToCancelLock) {
+            list = this.blockToCancel;
+            this.blockToCancel = new ArrayList<DataBlockInfo>();
+        }
+        return list;
+    }
+
     /**
      * This is used during the deserialization to recreate
      * the transient member variables.
@@ -256,7 +922,14 @@ public class PieceManager implements Serializable {
     private void readObject(ObjectInputStream in)
     throws IOException, ClassNotFoundException {
         in.defaultReadObject();
-        this.requestedMap = new SawToothIntervalMap(50);
+        this.dataManager.setWriteBuffers(WriteBuffers.instance());
+        this.requestLedger = new RequestLedger(requestTimeout());
+        this.piecePicker = new RarestFirstPiecePicker(piecesNumber());
         this.pieceToAnnounceLock = new Object();
+        this.blockToCancelLock = new Object();
+        this.allocateLock = new Object();
+        this.blockToCancel = new ArrayList<DataBlockInfo>();
+        this.hashing = new Bitfield(piecesNumber());
+        this.pieceDigests = new HashMap<Integer, PieceDigest>();
     }
 }
@@ -0,0 +1,71 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.Bitfield;
+
+/**
+ * A PiecePicker decides in which order the pieces are downloaded. It is told
+ * which pieces the peers have so that it can take the availability of the
+ * pieces into account.
+ *
+ * The methods are called with the lock of the PieceManager held.
+ */
+public interface PiecePicker {
+
+    /**
+     * Called when a peer sends its bitfield.
+     *
+     * @param bitfield the bitfield of the peer
+     */
+    public void addBitfield (Bitfield bitfield);
+
+    /**
+     * Called when a peer whose bitfield was added disconnects (or sends a
+     * new bitfield).
+     *
+     * @param bitfield the bitfield of the peer
+     */
+    public void removeBitfield (Bitfield bitfield);
+
+    /**
+     * Called when a peer announces a piece it didn't have.
+     *
+     * @param piece the index of the piece
+     */
+    public void addPiece (int piece);
+
+    /**
+     * Returns the piece with the given rank: the piece of rank 0 should be
+     * downloaded first.
+     *
+     * @param rank the rank, between 0 and the number of pieces - 1
+     * @return the index of the piece
+     */
+    public int pieceAt (int rank);
+}
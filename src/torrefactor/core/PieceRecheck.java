@@ -0,0 +1,277 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.Logger;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks a range of pieces against their SHA1 using all the processors,
+ * used to find which pieces of existing data we already have.
+ *
+ * The range is split in halves (fork/join) until a part is no longer than
+ * LEAF_SIZE bytes, each part is then read sequentially by one thread with
+ * reads of READ_SIZE bytes, so each thread streams a contiguous region of
+ * the files. The reads can be throttled to leave some disk bandwidth to the
+ * rest of the system.
+ */
+public class PieceRecheck {
+    private static Logger LOG = new Logger();
+    static final long LEAF_SIZE = 1 << 24; // in bytes
+    static final int READ_SIZE = 1 << 20; // in bytes
+
+    private static ForkJoinPool pool;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER =
+        new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocateDirect(READ_SIZE);
+            }
+        };
+
+    private final DataManager dataManager;
+    private final byte[] digestArray;
+    private final int first;
+    private final int end;
+    private final long rate;
+    private final Listener listener;
+    private final AtomicInteger checked = new AtomicInteger(0);
+    private volatile boolean cancelled = false;
+
+    // Bytes read since throttleStart (in ms), see throttle()
+    private final Object throttleLock = new Object();
+    private long throttleStart;
+    private long throttleBytes;
+
+    /**
+     * Called with the result of the check of each piece.
+     */
+    public interface Listener {
+        /**
+         * Executed once the piece has been checked, in the thread which
+         * checked it.
+         *
+         * @param piece the index of the piece
+         * @param valid true if the SHA1 of the piece is the expected one
+         */
+        public void onPieceRechecked (int piece, boolean valid);
+    }
+
+    /**
+     * Returns the ForkJoinPool shared by all the rechecks, with one thread
+     * per processor.
+     */
+    private static synchronized ForkJoinPool pool () {
+        if (pool == null) {
+            pool = new ForkJoinPool(
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * Create a new PieceRecheck of the pieces between first (included) and
+     * end (excluded).
+     *
+     * @param dataManager   the DataManager to read the pieces from
+     * @param digestArray   the concatenated SHA1 of all the pieces
+     * @param first         the index of the first piece to check
+     * @param end           the index following the last piece to check
+     * @param rate          the maximum number of bytes read per second, 0
+     *                      for no limit
+     * @param listener      the listener to call with the results
+     */
+    public PieceRecheck (DataManager dataManager, byte[] digestArray,
+                         int first, int end, long rate, Listener listener) {
+        this.dataManager = dataManager;
+        this.digestArray = digestArray;
+        this.first = first;
+        this.end = end;
+        this.rate = rate;
+        this.listener = listener;
+    }
+
+    /**
+     * Checks all the pieces and returns once they have been checked or the
+     * recheck was cancelled.
+     */
+    public void run () {
+        long start = System.currentTimeMillis();
+        synchronized (this.throttleLock) {
+            this.throttleStart = start;
+            this.throttleBytes = 0;
+        }
+        pool().invoke(new Range(this.first, this.end));
+        LOG.info(this, this.checked.get() + " pieces checked in "
+                 + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Stops the recheck, the pieces being read are not reported.
+     */
+    public void cancel () {
+        this.cancelled = true;
+    }
+
+    /**
+     * Returns the number of pieces checked so far.
+     */
+    public int checked () {
+        return this.checked.get();
+    }
+
+    /**
+     * Returns the number of pieces to check.
+     */
+    public int total () {
+        return this.end - this.first;
+    }
+
+    /**
+     * A range of pieces, split in two until it's short enough to be read
+     * by one thread.
+     */
+    private class Range extends RecursiveAction {
+        final int first;
+        final int end;
+
+        Range (int first, int end) {
+            this.first = first;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute () {
+            if (cancelled || this.first >= this.end) return;
+            long pieces = this.end - this.first;
+            if (pieces == 1
+                || pieces * dataManager.pieceLength() <= LEAF_SIZE) {
+                checkRange(this.first, this.end);
+                return;
+            }
+            int middle = (this.first + this.end) >>> 1;
+            invokeAll(new Range(this.first, middle),
+                      new Range(middle, this.end));
+        }
+    }
+
+    /**
+     * Reads the pieces between first and end in one pass and reports them.
+     */
+    private void checkRange (int first, int end) {
+        int pieceLength = this.dataManager.pieceLength();
+        long begin = (long) first * pieceLength;
+        long length = Math.min((long) end * pieceLength,
+                               this.dataManager.totalSize()) - begin;
+        int piece = first;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA1");
+            ByteBuffer buffer = BUFFER.get();
+            long pieceLeft = pieceSize(piece);
+            long position = begin;
+            while (position < begin + length) {
+                if (this.cancelled) return;
+                buffer.clear();
+                int count = (int) Math.min(buffer.capacity(),
+                                           begin + length - position);
+                buffer.limit(count);
+                this.dataManager.read(position, buffer);
+                position += count;
+                throttle(count);
+                buffer.flip();
+                // Feed the digest up to the end of each piece
+                while (buffer.hasRemaining()) {
+                    int limit = buffer.limit();
+                    int n = (int) Math.min(buffer.remaining(), pieceLeft);
+                    buffer.limit(buffer.position() + n);
+                    digest.update(buffer);
+                    buffer.limit(limit);
+                    pieceLeft -= n;
+                    if (pieceLeft == 0) {
+                        report(piece, MessageDigest.isEqual(
+                                    digest.digest(), expected(piece)));
+                        piece++;
+                        if (piece < end) pieceLeft = pieceSize(piece);
+                    }
+                }
+            }
+        } catch (NoSuchAlgorithmException e) {
+            LOG.error(this, "SHA1 is not available, can't check pieces");
+            cancel();
+        } catch (IOException e) {
+            LOG.error(this, "Could not read pieces " + piece + " to "
+                      + (end - 1) + ": " + e.getMessage());
+            for (; piece < end; piece++) {
+                report(piece, false);
+            }
+        }
+    }
+
+    private void report (int piece, boolean valid) {
+        this.checked.incrementAndGet();
+        this.listener.onPieceRechecked(piece, valid);
+    }
+
+    /**
+     * Waits until reading count more bytes doesn't exceed the rate.
+     */
+    private void throttle (int count) {
+        if (this.rate <= 0) return;
+        long wait;
+        synchronized (this.throttleLock) {
+            this.throttleBytes += count;
+            wait = this.throttleBytes * 1000 / this.rate
+                   - (System.currentTimeMillis() - this.throttleStart);
+        }
+        if (wait <= 0) return;
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+    }
+
+    private long pieceSize (int piece) {
+        long pieceBegin = (long) piece * this.dataManager.pieceLength();
+        return Math.min(this.dataManager.pieceLength(),
+                        this.dataManager.totalSize() - pieceBegin);
+    }
+
+    private byte[] expected (int piece) {
+        byte[] expected = new byte[20];
+        System.arraycopy(this.digestArray, 20*piece, expected, 0, 20);
+        return expected;
+    }
+}
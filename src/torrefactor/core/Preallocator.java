@@ -0,0 +1,147 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.Logger;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates the files of a torrent in full by writing zeros from the
+ * length they had when they were opened up to their size, so that the
+ * blocks received in random order don't fragment them. The files with a
+ * priority of 0 are skipped (see DataManager.setFilePriority()).
+ *
+ * No block must be written to the files before the allocation is done, it
+ * would be overwritten: the PieceManager doesn't request blocks meanwhile.
+ */
+public class Preallocator {
+    private static Logger LOG = new Logger();
+    static final int WRITE_SIZE = 1 << 20; // in bytes
+
+    // Shared by all the Preallocators, each write uses a duplicate
+    private static final ByteBuffer ZEROS =
+        ByteBuffer.allocateDirect(WRITE_SIZE);
+
+    private final DataManager dataManager;
+    private final FileStorage storage;
+    private final AtomicLong allocated = new AtomicLong(0);
+    private volatile long total = 0;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Create a new Preallocator of the files of the DataManager, which must
+     * be stored in files (see DataManager.needsAllocation()).
+     */
+    public Preallocator (DataManager dataManager) {
+        this.dataManager = dataManager;
+        this.storage = (FileStorage) dataManager.storage();
+    }
+
+    /**
+     * Allocates the files and returns once they are allocated or the
+     * allocation is cancelled. A file which can't be written is skipped.
+     */
+    public void run () {
+        long total = 0;
+        for (int i = 0; i < this.storage.files.length; i++) {
+            total += remaining(i);
+        }
+        this.total = total;
+
+        for (int i = 0; i < this.storage.files.length; i++) {
+            if (this.cancelled) return;
+            if (remaining(i) == 0) continue;
+            long position = this.storage.initialLength(i);
+            long size = this.storage.fileSizes[i];
+            LOG.debug(this, "Allocating " + this.storage.files[i]);
+            try {
+                while (position < size) {
+                    if (this.cancelled) return;
+                    int count = (int) Math.min(WRITE_SIZE, size - position);
+                    write(i, position, count);
+                    position += count;
+                    this.allocated.addAndGet(count);
+                }
+            } catch (IOException e) {
+                LOG.error(this, "Could not allocate "
+                          + this.storage.files[i] + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the file left to allocate.
+     */
+    private long remaining (int file) {
+        if (this.dataManager.filePriority(file) == 0) return 0;
+        return Math.max(0, this.storage.fileSizes[file]
+                           - this.storage.initialLength(file));
+    }
+
+    private void write (int file, long position, int count)
+    throws IOException {
+        ByteBuffer zeros = ZEROS.duplicate();
+        zeros.limit(count);
+        FileHandlePool.Handle handle = this.storage.acquire(file);
+        try {
+            while (zeros.hasRemaining()) {
+                position += handle.channel().write(zeros, position);
+            }
+        } finally {
+            this.storage.release(handle);
+        }
+    }
+
+    /**
+     * Stops the allocation, run() returns as soon as possible.
+     */
+    public void cancel () {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled () {
+        return this.cancelled;
+    }
+
+    /**
+     * Returns the number of bytes allocated so far.
+     */
+    public long allocated () {
+        return this.allocated.get();
+    }
+
+    /**
+     * Returns the number of bytes to allocate, 0 until run() is called.
+     */
+    public long total () {
+        return this.total;
+    }
+}
@@ -0,0 +1,189 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.Bitfield;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A PiecePicker which downloads the rarest pieces first: the pieces the
+ * fewest peers have. Pieces which are equally rare are picked in random
+ * order.
+ *
+ * The pieces are kept sorted by availability in the order array, where the
+ * pieces available from a peers start at rank start[a]. When the
+ * availability of a piece changes, it is swapped with the piece at the
+ * boundary of its group, which moves the boundary by one: updates are done in
+ * constant time. It is then swapped with a random piece of its new group so
+ * that the order within a group stays random.
+ */
+public class RarestFirstPiecePicker implements PiecePicker {
+    private int piecesNumber;
+    private int[] availability;
+    private int[] order;
+    private int[] rank;
+    // start[a] is the rank of the first piece available from a peers. Groups
+    // past the most available pieces are empty and start at piecesNumber.
+    private int[] start;
+    private Random random;
+
+    /**
+     * Create a new RarestFirstPiecePicker.
+     *
+     * @param piecesNumber  the number of pieces of the torrent
+     */
+    public RarestFirstPiecePicker (int piecesNumber) {
+        this(piecesNumber, new Random());
+    }
+
+    /**
+     * Create a new RarestFirstPiecePicker using the given Random for the
+     * order of equally rare pieces.
+     *
+     * @param piecesNumber  the number of pieces of the torrent
+     * @param random        the Random to use
+     */
+    public RarestFirstPiecePicker (int piecesNumber, Random random) {
+        this.piecesNumber = piecesNumber;
+        this.random = random;
+        this.availability = new int[piecesNumber];
+        this.order = new int[piecesNumber];
+        this.rank = new int[piecesNumber];
+        for (int i = 0; i < piecesNumber; i++) {
+            this.order[i] = i;
+        }
+        // Shuffle, all the pieces are equally rare
+        for (int i = piecesNumber - 1; i > 0; i--) {
+            swap(i, this.random.nextInt(i + 1));
+        }
+        for (int i = 0; i < piecesNumber; i++) {
+            this.rank[this.order[i]] = i;
+        }
+        this.start = new int[] { 0, piecesNumber, piecesNumber };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addBitfield (Bitfield bitfield) {
+        for (int i = bitfield.nextSetBit(0); i >= 0;
+             i = bitfield.nextSetBit(i + 1)) {
+            increment(i);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeBitfield (Bitfield bitfield) {
+        for (int i = bitfield.nextSetBit(0); i >= 0;
+             i = bitfield.nextSetBit(i + 1)) {
+            decrement(i);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addPiece (int piece) {
+        increment(piece);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int pieceAt (int rank) {
+        return this.order[rank];
+    }
+
+    /**
+     * Returns the number of peers which have the given piece.
+     */
+    public int availability (int piece) {
+        return this.availability[piece];
+    }
+
+    /**
+     * Moves the piece to the group of the pieces which are available from one
+     * more peer.
+     */
+    private void increment (int piece) {
+        int a = this.availability[piece];
+        if (this.start.length < a + 3) {
+            int length = this.start.length;
+            this.start = Arrays.copyOf(this.start, 2 * length);
+            Arrays.fill(this.start, length, this.start.length,
+                        this.piecesNumber);
+        }
+        // The last piece of group a becomes the first of group a+1
+        int last = this.start[a + 1] - 1;
+        swap(this.rank[piece], last);
+        this.start[a + 1]--;
+        this.availability[piece]++;
+        shuffle(piece, this.start[a + 1], this.start[a + 2]);
+    }
+
+    /**
+     * Moves the piece to the group of the pieces which are available from one
+     * less peer.
+     */
+    private void decrement (int piece) {
+        int a = this.availability[piece];
+        if (a == 0) return;
+        // The first piece of group a becomes the last of group a-1
+        int first = this.start[a];
+        swap(this.rank[piece], first);
+        this.start[a]++;
+        this.availability[piece]--;
+        shuffle(piece, this.start[a - 1], this.start[a]);
+    }
+
+    /**
+     * Swaps the piece with a random piece whose rank is in [begin, end[.
+     */
+    private void shuffle (int piece, int begin, int end) {
+        swap(this.rank[piece], begin + this.random.nextInt(end - begin));
+    }
+
+    /**
+     * Swaps the pieces at the given ranks.
+     */
+    private void swap (int i, int j) {
+        int piece = this.order[i];
+        this.order[i] = this.order[j];
+        this.order[j] = piece;
+        this.rank[this.order[i]] = i;
+        this.rank[this.order[j]] = j;
+    }
+}
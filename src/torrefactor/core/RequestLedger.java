@@ -0,0 +1,176 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import java.util.*;
+
+/**
+ * Keeps track of the blocks requested but not downloaded yet: for each block,
+ * the owner it has been requested from (usually a Peer) and when.
+ *
+ * Blocks are looked up by piece index and offset in constant time. Since
+ * requests are recorded in the order they are made, the expired ones are
+ * always at the beginning of the ledger and expire() only goes through them.
+ */
+public class RequestLedger {
+    private static class Request {
+        final DataBlockInfo info;
+        final Object owner;
+        final long time;
+
+        Request (DataBlockInfo info, Object owner, long time) {
+            this.info = info;
+            this.owner = owner;
+            this.time = time;
+        }
+    }
+
+    private final long timeout;
+    // Iterated from the oldest to the most recent request
+    private LinkedHashMap<Long, Request> requests =
+        new LinkedHashMap<Long, Request>();
+    private HashMap<Object, Set<Long>> owners =
+        new HashMap<Object, Set<Long>>();
+
+    /**
+     * Create a new RequestLedger.
+     *
+     * @param timeout   the time after which a request expires in ns
+     */
+    public RequestLedger (long timeout) {
+        this.timeout = timeout;
+    }
+
+    private static long key (int piece, int offset) {
+        return ((long) piece << 32) | (offset & 0xffffffffL);
+    }
+
+    /**
+     * Records that the given block has been requested from owner. If the
+     * block was already requested, the previous request is forgotten.
+     *
+     * @param info  the block
+     * @param owner the owner the block is requested from
+     * @param now   the current time as returned by System.nanoTime()
+     */
+    public void add (DataBlockInfo info, Object owner, long now) {
+        remove(info.pieceIndex(), info.offset());
+        long key = key(info.pieceIndex(), info.offset());
+        this.requests.put(key, new Request(info, owner, now));
+        Set<Long> keys = this.owners.get(owner);
+        if (keys == null) {
+            keys = new HashSet<Long>();
+            this.owners.put(owner, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Returns true if the block at the given piece and offset is requested.
+     */
+    public boolean contains (int piece, int offset) {
+        return this.requests.containsKey(key(piece, offset));
+    }
+
+    /**
+     * Returns the owner the block at the given piece and offset has been
+     * requested from or null if it's not requested.
+     */
+    public Object owner (int piece, int offset) {
+        Request request = this.requests.get(key(piece, offset));
+        return request == null ? null : request.owner;
+    }
+
+    /**
+     * Forgets the request of the block at the given piece and offset.
+     *
+     * @return the DataBlockInfo of the request or null if the block wasn't
+     *         requested
+     */
+    public DataBlockInfo remove (int piece, int offset) {
+        long key = key(piece, offset);
+        Request request = this.requests.remove(key);
+        if (request == null) return null;
+        Set<Long> keys = this.owners.get(request.owner);
+        keys.remove(key);
+        if (keys.isEmpty()) this.owners.remove(request.owner);
+        return request.info;
+    }
+
+    /**
+     * Forgets all the requests made to owner, for example because it choked
+     * us or disconnected.
+     *
+     * @return the number of requests forgotten
+     */
+    public int removeOwner (Object owner) {
+        Set<Long> keys = this.owners.remove(owner);
+        if (keys == null) return 0;
+        for (Long key: keys) {
+            this.requests.remove(key);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Forgets the requests older than the timeout so that their blocks can
+     * be requested again.
+     *
+     * @param now   the current time as returned by System.nanoTime()
+     * @return the DataBlockInfo of the expired requests
+     */
+    public List<DataBlockInfo> expire (long now) {
+        List<DataBlockInfo> expired = new ArrayList<DataBlockInfo>();
+        Iterator<Request> it = this.requests.values().iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (now - request.time < this.timeout) break;
+            it.remove();
+            long key = key(request.info.pieceIndex(), request.info.offset());
+            Set<Long> keys = this.owners.get(request.owner);
+            keys.remove(key);
+            if (keys.isEmpty()) this.owners.remove(request.owner);
+            expired.add(request.info);
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the number of requests in the ledger.
+     */
+    public int size () {
+        return this.requests.size();
+    }
+
+    /**
+     * Returns the time after which a request expires in ns.
+     */
+    public long timeout () {
+        return this.timeout;
+    }
+}
@@ -0,0 +1,156 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+/**
+ * Sizes the request window of a peer (the number of requests we keep
+ * pending with it) from what we measure on the blocks it sends us.
+ *
+ * The round-trip time between a request and its piece and the rate at which
+ * the peer delivers blocks are tracked with exponentially weighted moving
+ * averages. The window is GAIN times the bandwidth-delay product (delivery
+ * rate times the minimum round-trip time), between MIN_WINDOW and
+ * MAX_WINDOW blocks. Since the rate is limited by the window, the window
+ * roughly doubles at each measure until the peer can't deliver faster.
+ *
+ * The round-trip time of a request sent behind other ones includes the time
+ * it waits for them to be delivered, which grows with the window: the
+ * minimum is only taken from the requests sent while none was pending (see
+ * onBlock()), otherwise the window would keep growing.
+ */
+public class RequestWindow {
+    static final int MIN_WINDOW = 4; // in blocks
+    static final int MAX_WINDOW = 256; // in blocks
+    static final int INITIAL_WINDOW = 8; // in blocks
+    static final double GAIN = 2.0;
+    // Weight of a new sample in the moving averages
+    static final double RTT_ALPHA = 0.125;
+    static final double RATE_ALPHA = 0.25;
+    // Minimum duration of a delivery rate sample
+    static final long RATE_INTERVAL = 100 * 1000000L; // in ns
+    // The minimum round-trip time is replaced by the next unqueued sample
+    // after this delay so that the window follows when the path to the peer
+    // changes
+    static final long MIN_RTT_EXPIRY = 10 * 1000 * 1000000L; // in ns
+
+    private final int blockSize;
+    private volatile int size = INITIAL_WINDOW;
+
+    private double rtt = 0; // in ns
+    private long minRtt = Long.MAX_VALUE; // in ns
+    private long minRttTime = 0;
+    private double rate = 0; // in bytes per ns
+
+    private long rateStart = 0;
+    private long rateBytes = 0;
+
+    /**
+     * Create a new RequestWindow.
+     *
+     * @param blockSize the usual length of the requested blocks
+     */
+    public RequestWindow (int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Called when we get a block we requested.
+     *
+     * @param rtt       the time between the request and the block in ns
+     * @param unqueued  true if no other request was pending with the peer
+     *                  when this one was sent
+     * @param length    the length of the block
+     * @param now       the current time as returned by System.nanoTime()
+     */
+    public synchronized void onBlock (long rtt, boolean unqueued, int length,
+                                      long now) {
+        if (this.rtt == 0) {
+            this.rtt = rtt;
+        } else {
+            this.rtt += RTT_ALPHA * (rtt - this.rtt);
+        }
+        if (unqueued && (rtt <= this.minRtt
+                         || now - this.minRttTime > MIN_RTT_EXPIRY)) {
+            this.minRtt = rtt;
+            this.minRttTime = now;
+        }
+
+        if (this.rateStart == 0) {
+            // The first block only starts the measure
+            this.rateStart = now;
+            return;
+        }
+        this.rateBytes += length;
+        long elapsed = now - this.rateStart;
+        if (elapsed < RATE_INTERVAL) return;
+
+        double sample = (double) this.rateBytes / elapsed;
+        if (this.rate == 0) {
+            this.rate = sample;
+        } else {
+            this.rate += RATE_ALPHA * (sample - this.rate);
+        }
+        this.rateStart = now;
+        this.rateBytes = 0;
+
+        if (this.minRtt == Long.MAX_VALUE) return;
+        double bdp = this.rate * this.minRtt / this.blockSize;
+        int newSize = (int) Math.ceil(GAIN * bdp);
+        this.size = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, newSize));
+    }
+
+    /**
+     * Called when the peer stops sending blocks for a while (it chokes us):
+     * the delivery rate measure is restarted.
+     */
+    public synchronized void pause () {
+        this.rateStart = 0;
+        this.rateBytes = 0;
+    }
+
+    /**
+     * Returns the current size of the window in blocks.
+     */
+    public int size () {
+        return this.size;
+    }
+
+    /**
+     * Returns the smoothed round-trip time of the requests in ms.
+     */
+    public synchronized double rtt () {
+        return this.rtt / 1000000;
+    }
+
+    /**
+     * Returns the smoothed delivery rate in bytes per second.
+     */
+    public synchronized double rate () {
+        return this.rate * 1000000000;
+    }
+}
@@ -0,0 +1,227 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Reads and writes the resume records of the torrents, so that they can be
+ * restarted without checking all their pieces again.
+ *
+ * A resume record is a bencoded dictionary stored in
+ * System.getProperty("user.home")/.torrefactor/resume/ and named after the
+ * info hash of its torrent. It contains:
+ * - "version": the version of the format (VERSION)
+ * - "info hash", "torrent" and "base path": how to recreate the Torrent
+ * - "bitfield": the verified pieces
+ * - "intervals": the downloaded intervals as big-endian longs (beginning,
+ *   end included), which includes the blocks of the incomplete pieces
+ *   already written to the disk
+ * - "files": the length and the last modification time of each file
+ * - "priorities": the priority of each file (see
+ *   PieceManager.setFilePriority()), all the files have a priority of 1
+ *   if it's missing
+ * The verified pieces are only trusted if their files still have the
+ * length and modification time recorded, the pieces of the other files are
+ * checked again.
+ */
+public class ResumeData {
+    private static Logger LOG = new Logger();
+    // Increment when the format changes, older records are then ignored
+    static final int VERSION = 1;
+    static final String EXTENSION = ".resume";
+
+    /**
+     * Returns the directory where the resume records are stored.
+     */
+    public static File directory () {
+        File home = new File(System.getProperty("user.home"));
+        return new File(new File(home, ".torrefactor"), "resume");
+    }
+
+    /**
+     * Returns the resume records of the directory().
+     */
+    public static File[] list () {
+        File[] files = directory().listFiles(new FileFilter() {
+            public boolean accept (File file) {
+                return file.isFile() && file.getName().endsWith(EXTENSION);
+            }
+        });
+        return (files == null ? new File[0] : files);
+    }
+
+    /**
+     * Returns the resume record of the torrent with the given info hash.
+     */
+    public static File fileFor (byte[] infoHash) {
+        String name = ByteArrays.toHexString(infoHash).replace(" ", "");
+        return new File(directory(), name + EXTENSION);
+    }
+
+    /**
+     * Writes the resume record of the torrent. The record is written to a
+     * temporary file first so that a crash can't leave a truncated record.
+     */
+    public static synchronized void save (Torrent torrent)
+    throws IOException {
+        PieceManager pieceManager = torrent.pieceManager;
+        long[] intervals = pieceManager.savedIntervals();
+        byte[] bitfield = pieceManager.bitfield.toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 * intervals.length);
+        for (long point: intervals) {
+            buffer.putLong(point);
+        }
+        List<BValue> priorities = new ArrayList<BValue>();
+        for (int i = 0; i < torrent.getFiles().size(); i++) {
+            priorities.add(new BValue(pieceManager.filePriority(i)));
+        }
+        List<BValue> files = new ArrayList<BValue>();
+        for (Pair<File, Long> pair: torrent.getFiles()) {
+            File file = pair.first();
+            Map<String, BValue> stat = new HashMap<String, BValue>();
+            stat.put("length", new BValue(file.length()));
+            stat.put("mtime", new BValue(file.lastModified()));
+            files.add(new BValue(stat));
+        }
+
+        Map<String, BValue> record = new HashMap<String, BValue>();
+        record.put("version", new BValue(VERSION));
+        record.put("info hash", new BValue(torrent.infoHash));
+        record.put("torrent", new BValue(torrent.FILE_NAME));
+        record.put("base path", new BValue(torrent.getBasePath()));
+        record.put("bitfield", new BValue(bitfield));
+        record.put("intervals", new BValue(buffer.array()));
+        record.put("files", new BValue(files));
+        record.put("priorities", new BValue(priorities));
+
+        File directory = directory();
+        directory.mkdirs();
+        File file = fileFor(torrent.infoHash);
+        File tmp = new File(directory, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(BEncode.encode(new BValue(record)));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // renameTo() can't replace an existing file on some platforms
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + tmp + " to " + file);
+            }
+        }
+        LOG.debug("Resume record of " + torrent.FILE_NAME + " saved to " + file);
+    }
+
+    /**
+     * Deletes the resume record of the torrent with the given info hash.
+     */
+    public static synchronized void delete (byte[] infoHash) {
+        fileFor(infoHash).delete();
+    }
+
+    /**
+     * Recreates the torrent described by the resume record. The pieces of
+     * the files whose length or modification time changed since the record
+     * was written are checked again in the background by the PieceHasher.
+     */
+    public static Torrent load (File file)
+    throws IOException, InvalidBDecodeException, NoSuchAlgorithmException {
+        Map<String, BValue> record;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            record = BDecode.decodeDict(in);
+        } finally {
+            in.close();
+        }
+        if (!record.containsKey("version")
+            || record.get("version").toInt() != VERSION) {
+            throw new InvalidBDecodeException(
+                    "Unsupported resume record version in " + file);
+        }
+
+        Torrent torrent = new Torrent(record.get("torrent").toString(),
+                                      record.get("base path").toString());
+        if (!Arrays.equals(torrent.infoHash,
+                           record.get("info hash").toByteArray())) {
+            throw new InvalidBDecodeException(
+                    "Info hash of " + torrent.FILE_NAME + " changed");
+        }
+
+        PieceManager pieceManager = torrent.pieceManager;
+        Bitfield verified = new Bitfield(record.get("bitfield").toByteArray(),
+                                         pieceManager.piecesNumber());
+        ByteBuffer buffer =
+            ByteBuffer.wrap(record.get("intervals").toByteArray());
+        long[] intervals = new long[buffer.remaining() / 8];
+        for (int i = 0; i < intervals.length; i++) {
+            intervals[i] = buffer.getLong();
+        }
+        pieceManager.restore(verified, intervals);
+        if (record.containsKey("priorities")) {
+            List<BValue> priorities = record.get("priorities").toList();
+            for (int i = 0; i < priorities.size()
+                            && i < pieceManager.filesNumber(); i++) {
+                pieceManager.setFilePriority(i, priorities.get(i).toInt());
+            }
+        }
+
+        List<BValue> stats = record.get("files").toList();
+        List<Pair<File, Long>> files = torrent.getFiles();
+        long offset = 0;
+        int changed = 0;
+        for (int i = 0; i < files.size(); i++) {
+            File dataFile = files.get(i).first();
+            long length = files.get(i).second();
+            boolean unchanged = false;
+            if (i < stats.size()) {
+                Map<String, BValue> stat = stats.get(i).toMap();
+                unchanged = stat.get("length").toLong() == dataFile.length()
+                    && stat.get("mtime").toLong() == dataFile.lastModified();
+            }
+            if (!unchanged) {
+                LOG.info("File " + dataFile + " changed, checking its pieces");
+                pieceManager.recheck(offset, length);
+                changed++;
+            }
+            offset += length;
+        }
+        LOG.info("Resumed " + torrent.FILE_NAME + " from " + file + ", "
+                 + changed + " files changed");
+        return torrent;
+    }
+}
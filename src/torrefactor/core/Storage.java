@@ -0,0 +1,97 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * Stores the data of a torrent, seen as one contiguous range of bytes from
+ * 0 to the total size of its files. The implementations are thread-safe.
+ *
+ * DataManager.createStorage() creates the storage selected by the "Storage"
+ * property of the Config:
+ * - "mmap": the files are mapped in memory (see MappedStorage)
+ * - "channel": positional reads and writes on the files (see
+ *   ChannelStorage)
+ * - "memory": the data is only kept in memory, used for benchmarks and
+ *   tests (see MemoryStorage)
+ */
+public interface Storage {
+
+    /**
+     * Reads dst.remaining() bytes at the given position into dst.
+     *
+     * @param position  the position of the bytes in the data of the torrent
+     * @param dst       the buffer to read into
+     * @throws IOException if the bytes couldn't be read
+     */
+    public void read (long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes the src.remaining() bytes of src at the given position.
+     *
+     * @param position  the position of the bytes in the data of the torrent
+     * @param src       the buffer to write from
+     * @throws IOException if the bytes couldn't be written
+     */
+    public void write (long position, ByteBuffer src) throws IOException;
+
+    /**
+     * Returns the regions of the files containing the given bytes, used to
+     * send them without copying them (see FileRegion), or null if the data
+     * isn't stored in files.
+     */
+    public FileRegion[] fileRegions (long position, long length);
+
+    /**
+     * Returns true if some data was already stored when the storage was
+     * opened.
+     */
+    public boolean hadData ();
+
+    /**
+     * Makes sure the bytes written so far are on the disk.
+     */
+    public void flush () throws IOException;
+
+    /**
+     * Releases the resources of the storage, it can't be used anymore.
+     */
+    public void close () throws IOException;
+
+    /**
+     * Returns the number of bytes read so far.
+     */
+    public long bytesRead ();
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long bytesWritten ();
+}
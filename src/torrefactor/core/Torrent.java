@@ -182,20 +182,19 @@ public class Torrent implements Serializable {
     }
 
     public double progress() {
-        return ByteArrays.percentage(this.pieceManager.bitfield);
+        return ((double) this.pieceManager.bitfield.cardinality())
+               / this.pieceManager.piecesNumber();
     }
 
     /**
      * Returns how much byte have been downloaded and verified.
      */
     public long done() {
-        long done = this.pieceManager.piecesDownloaded() * pieceLength;
-        if (done > this.length) done = this.length;
-        return done;
+        return this.pieceManager.bytesDone();
     }
 
     public long left() {
-        return this.length - done();
+        return this.pieceManager.bytesLeft();
     }
 
     public long downloaded() {
@@ -242,22 +241,49 @@ public class Torrent implements Serializable {
         return this.pieceLength;
     }
 
+    /**
+     * Starts the PeerManager, and the allocation of the files in a new
+     * thread if it isn't done (see PieceManager.allocate()).
+     */
     public void start() throws ProtocolException, InvalidBDecodeException,
                         IOException {
+        if (this.pieceManager.needsAllocation()) {
+            Threads.start(new Runnable() {
+                public void run() {
+                    pieceManager.allocate();
+                }
+            }, "Allocate");
+        }
         if (this.peerManager == null) {
             this.peerManager = new PeerManager(this);
         } else if (!this.peerManager.isStopped()) {
             return;
         }
-        new Thread(this.peerManager).start();
+        Threads.start(this.peerManager, "PeerManager");
     }
 
+    /**
+     * Stops the PeerManager, and the recheck of the data or the allocation
+     * of the files in progress if any.
+     */
     public void stop() {
+        this.pieceManager.cancelRecheck();
+        this.pieceManager.cancelAllocation();
         if (this.peerManager == null) return;
 
         this.peerManager.stop();
     }
 
+    /**
+     * Checks all the pieces of the existing data and returns once they have
+     * been checked, see PieceManager.recheckAll(). The reads are limited by
+     * the "RecheckRate" property of the Config (in KiB/s, 0 for no limit).
+     */
+    public void recheck () {
+        long rate = Config.getConfig().getPropertyInt("RecheckRate") * 1024L;
+        this.pieceManager.recheckAll(rate);
+    }
+
     public Map<InetAddress, Peer> getPeerMap () {
         if (this.peerManager == null) return null;
         return this.peerManager.getPeerMap();
@@ -276,6 +302,14 @@ public class Torrent implements Serializable {
     }
 
     public String getState () {
+        double allocation = this.pieceManager.allocationProgress();
+        if (allocation >= 0) {
+            return "Allocating (" + (int) (allocation * 100) + "%)";
+        }
+        double recheck = this.pieceManager.recheckProgress();
+        if (recheck >= 0) {
+            return "Checking (" + (int) (recheck * 100) + "%)";
+        }
         if (this.peerManager != null) {
             PeerManager.State state = this.peerManager.state();
             if (state != null) {
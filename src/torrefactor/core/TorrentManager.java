@@ -36,27 +36,20 @@ import java.security.*;
 
 /**
  * This class manages a list of Torrent.
- * When it is instancied, it will attempt to read its state from a config
- * file. It will write to this file when it's stop()-ed.
- * The config file name is System.getProperty("user.home")/.torrefactor/config.bin
+ * When it is instancied, it restores the torrents from their resume records
+ * (see ResumeData). The records are written when a torrent is added, while
+ * it is running (see PeerManager) and when the TorrentManager is stop()-ed.
  */
 public class TorrentManager {
     private static TorrentManager instance;
     private static Logger LOG = new Logger();
     private List<Torrent> torrentList;
-    private transient List<Torrent> readOnlyList;
-    private File configFile;
+    private List<Torrent> readOnlyList;
 
     private TorrentManager() {
-        File home = new File(System.getProperty("user.home"));
-        File configDir = new File(home, ".torrefactor");
-        configDir.mkdir();
-        configFile = new File(configDir, "config.bin");
-        if (restoreConfig()) {
-            return;
-        }
         this.torrentList = new ArrayList<Torrent>();
         this.readOnlyList = Collections.unmodifiableList(this.torrentList);
+        restoreTorrents();
     }
 
     public static synchronized TorrentManager instance() {
@@ -79,7 +72,40 @@ public class TorrentManager {
         }
         Torrent torrent = new Torrent(fileName, basePath);
         boolean ok = this.torrentList.add(torrent);
-        return (ok ? torrent : null);
+        if (!ok) {
+            return null;
+        }
+        boolean recheck = torrent.pieceManager.hadData();
+        if (recheck || torrent.pieceManager.needsAllocation()) {
+            prepareInBackground(torrent, recheck);
+        } else {
+            saveResumeData(torrent);
+        }
+        return torrent;
+    }
+
+    /**
+     * Allocates the files of the torrent if needed (see
+     * PieceManager.allocate()) and checks its existing data if recheck is
+     * true in a new thread, then writes its resume record.
+     */
+    private void prepareInBackground(final Torrent torrent,
+                                     final boolean recheck) {
+        Threads.start(new Runnable() {
+            public void run() {
+                if (torrent.pieceManager.needsAllocation()) {
+                    LOG.info(TorrentManager.this,
+                             "Allocating files of " + torrent.FILE_NAME);
+                    torrent.pieceManager.allocate();
+                }
+                if (recheck) {
+                    LOG.info(TorrentManager.this, "Checking existing data of "
+                             + torrent.FILE_NAME);
+                    torrent.recheck();
+                }
+                saveResumeData(torrent);
+            }
+        }, "Prepare");
     }
 
     /**
@@ -98,47 +124,49 @@ public class TorrentManager {
     }
 
     /**
-     * Stop all currently running torrents.
-     * Write config to the config file specified
-     * in the constructor.
+     * Stop all currently running torrents, write their resume records and
+     * close their files.
      */
     public synchronized void stop() {
         for (Torrent torrent: torrentList) {
             torrent.stop();
+            // The PeerManager may not get to flush the buffers before the
+            // JVM exits
+            torrent.pieceManager.flushBuffers();
+            saveResumeData(torrent);
+            torrent.pieceManager.close();
         }
-        saveConfig();
+        LOG.info(this, FileHandlePool.instance().toString());
     }
 
-    // FIXME: Serialization can easily break with code changes
-    // Especially since we don't define serialVersionUID
-    @SuppressWarnings("unchecked") // config.bin should contains an ArrayList<Torrent>
-    private boolean restoreConfig() {
-        if (!configFile.exists()) {
-            return false;
-        }
-        try {
-            LOG.info(this, "Restoring config from " + this.configFile);
-            FileInputStream fis = new FileInputStream(this.configFile);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            this.torrentList = (ArrayList<Torrent>) ois.readObject();
-            this.readOnlyList = Collections.unmodifiableList(this.torrentList);
-        } catch (Exception e) {
-            LOG.error(this,
-                      "Couldn't load saved config from " + this.configFile
-                      + " reason: " + e.toString());
+    /**
+     * Recreates the torrents from the resume records, a record which can't
+     * be read is skipped.
+     */
+    private void restoreTorrents() {
+        for (File file: ResumeData.list()) {
+            try {
+                Torrent torrent = ResumeData.load(file);
+                if (getTorrent(torrent.infoHash) == null) {
+                    this.torrentList.add(torrent);
+                    if (torrent.pieceManager.needsAllocation()) {
+                        prepareInBackground(torrent, false);
+                    }
+                }
+            } catch (Exception e) {
+                LOG.error(this,
+                          "Couldn't restore torrent from " + file
+                          + " reason: " + e.toString());
+            }
         }
-
-        return (this.torrentList != null);
     }
 
-    private void saveConfig() {
+    private void saveResumeData(Torrent torrent) {
         try {
-            FileOutputStream fos = new FileOutputStream(this.configFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(this.torrentList);
-        } catch (Exception e) {
+            ResumeData.save(torrent);
+        } catch (IOException e) {
             LOG.error(this,
-                      "Couldn't save config to " + this.configFile
+                      "Couldn't save resume record of " + torrent.FILE_NAME
                       + " reason: " + e.toString());
         }
     }
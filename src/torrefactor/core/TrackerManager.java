@@ -34,6 +34,7 @@ import torrefactor.core.Tracker.Event;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -42,7 +43,7 @@ import java.util.*;
 public class TrackerManager {
     private static Logger LOG = new Logger();
     private List<List<String>> tiers;
-    private long nextAnnounceTime = 0;
+    private volatile long nextAnnounceTime = 0;
     private Torrent torrent;
     protected int uniqKey;
 
@@ -87,7 +88,7 @@ public class TrackerManager {
      * @return a List of Pair (address ip as byte[], port) returned by the
      *         trackers. (Can be null)
      */
-    public List<Pair<byte[], Integer>> announce (Event event) {
+    public synchronized List<Pair<byte[], Integer>> announce (Event event) {
         List<Pair<byte[], Integer>> peersList = null;
         LOG.info(this, "Announcing...");
 
@@ -100,6 +101,27 @@ public class TrackerManager {
         return peersList;
     }
 
+    /**
+     * Announce an event to the tracker in a new thread (see Threads) so that
+     * the caller isn't blocked while the trackers respond.
+     *
+     * @param event the event to announce
+     * @return a Future whose result is the List of Pair (address ip as
+     *         byte[], port) returned by the trackers. (Can be null)
+     */
+    public Future<List<Pair<byte[], Integer>>> announceAsync (
+            final Event event) {
+        FutureTask<List<Pair<byte[], Integer>>> task =
+            new FutureTask<List<Pair<byte[], Integer>>>(
+                new Callable<List<Pair<byte[], Integer>>>() {
+                    public List<Pair<byte[], Integer>> call () {
+                        return announce(event);
+                    }
+                });
+        Threads.start(task, "Announce-" + event);
+        return task;
+    }
+
     /**
      * Make an announce as per Bittorrent multitracker specification for the
      * given tier.
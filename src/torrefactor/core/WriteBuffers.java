@@ -0,0 +1,125 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.core;
+
+import torrefactor.util.*;
+
+import java.util.*;
+
+/**
+ * The memory of the write-back buffers of the pieces (see
+ * DataManager.bufferPiece()), shared by all the torrents so that it doesn't
+ * grow with their number.
+ *
+ * The buffers given back are kept to be reused by the pieces of the same
+ * length. Both the buffers in use and the ones kept count against the
+ * capacity, the kept buffers of other lengths are freed when a new buffer
+ * doesn't fit.
+ */
+public class WriteBuffers {
+    private static WriteBuffers instance;
+
+    private final long capacity;
+    // Memory of the buffers in use and of the kept ones
+    private long size = 0;
+    // The kept buffers by length
+    private final HashMap<Integer, ArrayDeque<byte[]>> free =
+        new HashMap<Integer, ArrayDeque<byte[]>>();
+
+    /**
+     * Returns the WriteBuffers shared by all the torrents, its capacity is
+     * given by the "WriteBufferSize" property of the Config (in MiB).
+     */
+    public static synchronized WriteBuffers instance () {
+        if (instance == null) {
+            long capacity =
+                Config.getConfig().getPropertyInt("WriteBufferSize")
+                * (1L << 20);
+            instance = new WriteBuffers(capacity);
+        }
+        return instance;
+    }
+
+    /**
+     * Create a new WriteBuffers.
+     *
+     * @param capacity  the maximum memory used by the buffers in bytes, 0
+     *                  to never buffer the pieces
+     */
+    public WriteBuffers (long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a buffer of the given length, with an undefined content, or
+     * null if it doesn't fit in the capacity.
+     */
+    public synchronized byte[] get (int length) {
+        ArrayDeque<byte[]> buffers = this.free.get(length);
+        if (buffers != null && !buffers.isEmpty()) {
+            return buffers.poll();
+        }
+        Iterator<ArrayDeque<byte[]>> it = this.free.values().iterator();
+        while (this.size + length > this.capacity && it.hasNext()) {
+            ArrayDeque<byte[]> others = it.next();
+            while (this.size + length > this.capacity && !others.isEmpty()) {
+                this.size -= others.poll().length;
+            }
+        }
+        if (this.size + length > this.capacity) {
+            return null;
+        }
+        this.size += length;
+        return new byte[length];
+    }
+
+    /**
+     * Gives back a buffer returned by get(), it must not be used anymore.
+     */
+    public synchronized void release (byte[] buffer) {
+        ArrayDeque<byte[]> buffers = this.free.get(buffer.length);
+        if (buffers == null) {
+            buffers = new ArrayDeque<byte[]>();
+            this.free.put(buffer.length, buffers);
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Returns the memory used by the buffers in use and the kept ones in
+     * bytes.
+     */
+    public synchronized long size () {
+        return this.size;
+    }
+
+    @Override
+    public synchronized String toString () {
+        return "WriteBuffers: " + this.size + "/" + this.capacity + " bytes";
+    }
+}
@@ -29,6 +29,8 @@ package torrefactor.core.messages;
 
 import torrefactor.util.ByteArrays;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents a bitfield message.
  *  id          1 byte
@@ -70,4 +72,21 @@ public class BitfieldMessage extends Message {
 
         return ByteArrays.concat(new byte[][] {t, bitfield});
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length () {
+        return 1 + this.bitfield.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo (ByteBuffer buffer) {
+        buffer.put(id());
+        buffer.put(this.bitfield);
+    }
 }
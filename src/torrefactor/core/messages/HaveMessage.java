@@ -29,6 +29,8 @@ package torrefactor.core.messages;
 
 import torrefactor.util.ByteArrays;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents a have message.
  *  id          1 byte
@@ -83,4 +85,21 @@ public class HaveMessage extends Message {
 
         return ByteArrays.concat(new byte[][] {t, i});
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length () {
+        return 5;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo (ByteBuffer buffer) {
+        buffer.put(id());
+        buffer.putInt(this.index);
+    }
 }
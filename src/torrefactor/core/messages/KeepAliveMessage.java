@@ -27,6 +27,8 @@
 
 package torrefactor.core.messages;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents a keep-alive message.
  */
@@ -48,4 +50,20 @@ public class KeepAliveMessage extends Message {
     public byte[] toByteArray () {
         return new byte[] {};
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length () {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo (ByteBuffer buffer) {
+        // Nothing but the length prefix
+    }
 }
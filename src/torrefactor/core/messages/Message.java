@@ -29,6 +29,8 @@ package torrefactor.core.messages;
 
 import torrefactor.util.ByteArrays;
 
+import java.nio.ByteBuffer;
+
 /**
  * This is the parent class of all messages. The variable id MUST be overriden
  * by classes extending this class.
@@ -66,4 +68,25 @@ public abstract class Message {
     public byte[] toByteArray () {
         return new byte[] {id()};
     }
+
+    /**
+     * Returns the length of the byte array representation of this message
+     * (without the length prefix).
+     *
+     * @return the length of the representation of this message
+     */
+    public int length () {
+        return 1;
+    }
+
+    /**
+     * Writes the byte array representation of this message to the buffer,
+     * without building it first. The buffer must have at least length()
+     * bytes remaining.
+     *
+     * @param buffer the buffer to write to
+     */
+    public void writeTo (ByteBuffer buffer) {
+        buffer.put(id());
+    }
 }
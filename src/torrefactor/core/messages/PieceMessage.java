@@ -29,6 +29,8 @@ package torrefactor.core.messages;
 
 import torrefactor.util.ByteArrays;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * Represents a piece message.
@@ -97,4 +99,23 @@ public class PieceMessage extends Message {
 
         return a;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length () {
+        return 9 + this.block.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo (ByteBuffer buffer) {
+        buffer.put(id());
+        buffer.putInt(this.index);
+        buffer.putInt(this.offset);
+        buffer.put(this.block);
+    }
 }
@@ -29,6 +29,8 @@ package torrefactor.core.messages;
 
 import torrefactor.util.ByteArrays;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents a port message.
  *  id      1 byte
@@ -83,4 +85,20 @@ public class PortMessage extends Message {
         return ByteArrays.concat(new byte[][] {t, p});
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length () {
+        return 3;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo (ByteBuffer buffer) {
+        buffer.put(id());
+        buffer.putShort((short) this.port);
+    }
 }
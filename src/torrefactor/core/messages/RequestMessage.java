@@ -30,6 +30,8 @@ package torrefactor.core.messages;
 import torrefactor.core.DataBlockInfo;
 import torrefactor.util.ByteArrays;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents a request message.
  *  id  1 byte
@@ -94,4 +96,23 @@ public class RequestMessage extends Message {
 
         return b;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length () {
+        return 13;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo (ByteBuffer buffer) {
+        buffer.put(id());
+        buffer.putInt(this.index);
+        buffer.putInt(this.offset);
+        buffer.putInt(this.length);
+    }
 }
@@ -30,6 +30,8 @@ package torrefactor.core.messages;
 import torrefactor.util.Logger;
 import torrefactor.util.ByteArrays;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * Represents an unknown message. This message does not have a fixed id. The id
@@ -81,4 +83,23 @@ public class UnknownMessage extends Message {
     public byte[] toByteArray () {
         return ByteArrays.concat(new byte[][] {super.toByteArray(), this.data});
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int length () {
+        return 1 + (this.data == null ? 0 : this.data.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTo (ByteBuffer buffer) {
+        buffer.put(id());
+        if (this.data != null) {
+            buffer.put(this.data);
+        }
+    }
 }
@@ -27,7 +27,6 @@
 
 package torrefactor.ui.swing;
 
-import java.util.*;
 import java.awt.*;
 import javax.swing.*;
 
@@ -78,8 +77,8 @@ public class PieceBar extends JComponent {
         }
         int pieceNumber = this.pieceManager.piecesNumber();
         int pieceLength = this.pieceManager.pieceLength();
-        byte[] bitfield = this.pieceManager.bitfield;
-        IntervalMap blockMap = this.pieceManager.intervalMap;
+        Bitfield bitfield = this.pieceManager.bitfield;
+        long[] blocks = this.pieceManager.intervalMap.snapshot();
 
         Graphics2D g2 = (Graphics2D) g;
         g.translate(BORDER_THICKNESS, BORDER_THICKNESS);
@@ -90,16 +89,15 @@ public class PieceBar extends JComponent {
         g2.scale(wScale,1);
 
         g2.setColor(IN_PROGRESS_COLOR);
-        for (Map.Entry<Long, Long> block: blockMap.entrySet()) {
-            int firstPiece = (int) (block.getKey().longValue() /  pieceLength);
-            int lastPiece = (int) ((block.getValue().longValue() - 1) / pieceLength + 1);
+        for (int i = 0; i < blocks.length; i += 2) {
+            int firstPiece = (int) (blocks[i] /  pieceLength);
+            int lastPiece = (int) ((blocks[i + 1] - 1) / pieceLength + 1);
             g2.fillRect(firstPiece, 0, lastPiece - firstPiece, height);
         }
         g2.setColor(FINISHED_COLOR);
-        for (int i = 0; i < 8*bitfield.length; i++) {
-            if (ByteArrays.isBitSet(bitfield, i)) {
-                g2.fillRect(i, 0, 1, height);
-            }
+        for (int i = bitfield.nextSetBit(0); i >= 0;
+             i = bitfield.nextSetBit(i + 1)) {
+            g2.fillRect(i, 0, 1, height);
         }
     }
 }
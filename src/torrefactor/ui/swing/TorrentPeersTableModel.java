@@ -50,14 +50,17 @@ public class TorrentPeersTableModel extends AbstractTableModel {
     private Torrent torrent;
     private Map<InetAddress, Peer> peerMap;
     public String[] columnNames = {"Address", "Port", "Id", "Connected",
-                                   "Uploaded", "Downloaded", };
-    public enum Column { HOST, PORT, ID, CONNECTED, UPLOADED, DOWNLOADED };
+                                   "Uploaded", "Downloaded", "Requests",
+                                   "RTT", };
+    public enum Column { HOST, PORT, ID, CONNECTED, UPLOADED, DOWNLOADED,
+                         REQUESTS, RTT };
     private Column[] columns;
 
     public TorrentPeersTableModel() {
         this.columns = new Column[] { Column.HOST, Column.PORT, Column.ID,
                                       Column.CONNECTED, Column.UPLOADED, 
-                                      Column.DOWNLOADED };
+                                      Column.DOWNLOADED, Column.REQUESTS,
+                                      Column.RTT };
     }
     
     /**
@@ -149,6 +152,12 @@ public class TorrentPeersTableModel extends AbstractTableModel {
             data = HumanReadable.fromLong(peer.downloaded ());
         } else if (column == Column.DOWNLOADED) {
             data = HumanReadable.fromLong(peer.uploaded ());
+        } else if (column == Column.REQUESTS) {
+            data = peer.pendingRequests() + "/" + peer.requestWindow() + " ("
+                   + String.format("%.2f", peer.deliveryRate() / 1024)
+                   + "KB/s)";
+        } else if (column == Column.RTT) {
+            data = String.format("%.0f ms", peer.requestRtt());
         } else {
             data = "No such column.";
         }
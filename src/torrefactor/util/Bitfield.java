@@ -0,0 +1,248 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.util;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed length set of bits which can be read and modified concurrently
+ * without locking, used to know which pieces we or a peer have.
+ *
+ * The bits are stored in 64 bits words in the order of the bitfield message
+ * of the Bittorrent protocol: bit 0 is the most significant bit of the first
+ * word. This makes conversions from and to the byte array of the message
+ * straightforward and scans are done a word at a time. The number of bits
+ * set is kept up to date by set() and clear().
+ */
+public class Bitfield implements Serializable {
+    private final int length;
+    private final AtomicLongArray words;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * Create a new Bitfield with all the bits cleared.
+     *
+     * @param length    the number of bits
+     */
+    public Bitfield (int length) {
+        this.length = length;
+        this.words = new AtomicLongArray((length + 63) >>> 6);
+    }
+
+    /**
+     * Create a new Bitfield from a byte array as sent in bitfield messages.
+     * The bits past length are ignored.
+     *
+     * @param bytes     the bits, the first bit is the most significant bit
+     *                  of the first byte
+     * @param length    the number of bits
+     */
+    public Bitfield (byte[] bytes, int length) {
+        this(length);
+        int total = 0;
+        for (int w = 0; w < this.words.length(); w++) {
+            long word = ByteArrays.wordAt(bytes, w) & wordMask(w);
+            this.words.set(w, word);
+            total += Long.bitCount(word);
+        }
+        this.count.set(total);
+    }
+
+    /**
+     * Returns the mask of the bits of word w which are part of this bitfield.
+     */
+    private long wordMask (int w) {
+        int bits = this.length - 64*w;
+        if (bits >= 64) return -1L;
+        if (bits <= 0) return 0;
+        return -1L << (64 - bits);
+    }
+
+    private static long bit (int index) {
+        return Long.MIN_VALUE >>> (index & 63);
+    }
+
+    private void checkIndex (int index) {
+        if (index < 0 || index >= this.length) {
+            throw new IndexOutOfBoundsException(
+                    "Bit " + index + " out of " + this.length);
+        }
+    }
+
+    /**
+     * Returns the number of bits of this bitfield.
+     */
+    public int length () {
+        return this.length;
+    }
+
+    /**
+     * Returns true if the bit at index is set.
+     */
+    public boolean get (int index) {
+        checkIndex(index);
+        return (this.words.get(index >>> 6) & bit(index)) != 0;
+    }
+
+    /**
+     * Sets the bit at index.
+     *
+     * @return true if the bit wasn't set before
+     */
+    public boolean set (int index) {
+        checkIndex(index);
+        int w = index >>> 6;
+        long mask = bit(index);
+        long word;
+        do {
+            word = this.words.get(w);
+            if ((word & mask) != 0) return false;
+        } while (!this.words.compareAndSet(w, word, word | mask));
+        this.count.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Clears the bit at index.
+     *
+     * @return true if the bit was set before
+     */
+    public boolean clear (int index) {
+        checkIndex(index);
+        int w = index >>> 6;
+        long mask = bit(index);
+        long word;
+        do {
+            word = this.words.get(w);
+            if ((word & mask) == 0) return false;
+        } while (!this.words.compareAndSet(w, word, word & ~mask));
+        this.count.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the number of bits set.
+     */
+    public int cardinality () {
+        return this.count.get();
+    }
+
+    /**
+     * Returns true if all the bits are set.
+     */
+    public boolean isComplete () {
+        return this.count.get() == this.length;
+    }
+
+    /**
+     * Returns the index of the first bit set at or after from, -1 if
+     * there's none.
+     */
+    public int nextSetBit (int from) {
+        if (from < 0) from = 0;
+        if (from >= this.length) return -1;
+        int w = from >>> 6;
+        long word = this.words.get(w) & (-1L >>> (from & 63));
+        while (true) {
+            if (word != 0) {
+                return 64*w + Long.numberOfLeadingZeros(word);
+            }
+            if (++w == this.words.length()) return -1;
+            word = this.words.get(w);
+        }
+    }
+
+    /**
+     * Returns the index of the first bit cleared at or after from, length()
+     * if there's none.
+     */
+    public int nextClearBit (int from) {
+        if (from < 0) from = 0;
+        if (from >= this.length) return this.length;
+        int w = from >>> 6;
+        long word = ~this.words.get(w) & (-1L >>> (from & 63));
+        while (true) {
+            word &= wordMask(w);
+            if (word != 0) {
+                return 64*w + Long.numberOfLeadingZeros(word);
+            }
+            if (++w == this.words.length()) return this.length;
+            word = ~this.words.get(w);
+        }
+    }
+
+    /**
+     * Returns true if some bit set in this bitfield isn't set in other. For
+     * example peerBitfield.hasBitsNotIn(ourBitfield) tells whether a peer is
+     * interesting.
+     *
+     * @param other a bitfield of the same length
+     */
+    public boolean hasBitsNotIn (Bitfield other) {
+        for (int w = 0; w < this.words.length(); w++) {
+            if ((this.words.get(w) & ~other.words.get(w)) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of bits set in this bitfield which aren't set in
+     * other.
+     *
+     * @param other a bitfield of the same length
+     */
+    public int countBitsNotIn (Bitfield other) {
+        int total = 0;
+        for (int w = 0; w < this.words.length(); w++) {
+            total += Long.bitCount(this.words.get(w) & ~other.words.get(w));
+        }
+        return total;
+    }
+
+    /**
+     * Returns the bits as a byte array as sent in bitfield messages. The
+     * spare bits at the end of the last byte are cleared.
+     */
+    public byte[] toByteArray () {
+        byte[] bytes = new byte[(this.length + 7) >>> 3];
+        for (int w = 0; w < this.words.length(); w++) {
+            long word = this.words.get(w);
+            for (int b = 0; b < 8 && 8*w + b < bytes.length; b++) {
+                bytes[8*w + b] = (byte) (word >>> (56 - 8*b));
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString () {
+        return ByteArrays.toHexString(toByteArray());
+    }
+}
@@ -0,0 +1,101 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of byte arrays of the same size.
+ *
+ * Arrays obtained with get() should be given back with release() once they
+ * are not used anymore so that they can be reused instead of being garbage
+ * collected. At most maxBuffers arrays are kept in the pool.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ConcurrentLinkedQueue<byte[]> buffers =
+        new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * Create a new BufferPool.
+     *
+     * @param bufferSize    the length of the arrays of this pool
+     * @param maxBuffers    the maximum number of arrays kept in the pool
+     */
+    public BufferPool (int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Returns an array of length bufferSize() from the pool or a new one if
+     * the pool is empty. Its content is undefined.
+     */
+    public byte[] get () {
+        byte[] buffer = this.buffers.poll();
+        if (buffer == null) {
+            return new byte[this.bufferSize];
+        }
+        this.count.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives an array back to the pool. Arrays whose length isn't
+     * bufferSize() are ignored, as are arrays released while the pool is
+     * full.
+     *
+     * @param buffer    the array, it must not be used anymore by the caller
+     */
+    public void release (byte[] buffer) {
+        if (buffer == null || buffer.length != this.bufferSize) return;
+
+        if (this.count.incrementAndGet() > this.maxBuffers) {
+            this.count.decrementAndGet();
+            return;
+        }
+        this.buffers.offer(buffer);
+    }
+
+    /**
+     * Returns the length of the arrays of this pool.
+     */
+    public int bufferSize () {
+        return this.bufferSize;
+    }
+
+    /**
+     * Returns the number of arrays currently in the pool.
+     */
+    public int size () {
+        return this.count.get();
+    }
+}
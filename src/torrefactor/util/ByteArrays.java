@@ -64,37 +64,27 @@ public class ByteArrays {
     }
 
     /**
-     * Returns true if the first length bits are set to 1, false otherwise
+     * Returns the w-th 64 bits word of the array in Big Endian, the bytes
+     * past the end of the array are read as 0. Bitfield scans its bytes a
+     * word at a time with it.
      */
-    public static boolean isComplete(byte[] bitfield, int length) {
-        int i;
-        for (i = 0; i<length/8; i++) {
-            if (bitfield[i] != (byte) 0xFF) {
-                return false;
-            }
+    public static long wordAt(byte[] array, int w) {
+        int offset = 8*w;
+        if (offset + 8 <= array.length) {
+            return ((long) (array[offset] & 0xFF) << 56)
+                   | ((long) (array[offset + 1] & 0xFF) << 48)
+                   | ((long) (array[offset + 2] & 0xFF) << 40)
+                   | ((long) (array[offset + 3] & 0xFF) << 32)
+                   | ((long) (array[offset + 4] & 0xFF) << 24)
+                   | ((long) (array[offset + 5] & 0xFF) << 16)
+                   | ((long) (array[offset + 6] & 0xFF) << 8)
+                   | ((long) (array[offset + 7] & 0xFF));
         }
-        if (length % 8 == 0) {
-            return true;
+        long word = 0;
+        for (int i = 0; i < 8 && offset + i < array.length; i++) {
+            word |= (long) (array[offset + i] & 0xFF) << (56 - 8*i);
         }
-        byte lastByte = (byte) (0xFF << 7 - (length % 8));
-        return bitfield[i] == lastByte;
-    }
-
-    /**
-     * Returns the percentage of bits set to 1.
-     */
-    public static double percentage(byte[] bitfield) {
-        long max = bitfield.length * 8;
-        long count = done(bitfield);
-
-        return ((double) count) / ((double) max);
-    }
-
-    /**
-     * Returns how much bits are set to 1.
-     */
-    public static int done(byte[] bitfield) {
-        return new BigInteger(1, bitfield).bitCount();
+        return word;
     }
 
     /**
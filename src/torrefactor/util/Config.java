@@ -55,6 +55,15 @@ public class Config extends Properties {
     private static void setDefaults (Properties p) {
         p.setProperty("ListenPort", "7979");
         p.setProperty("DHT", "true");
+        p.setProperty("EventLoops", "2");
+        p.setProperty("VirtualThreads", "false");
+        p.setProperty("RequestTimeout", "60");
+        p.setProperty("RecheckRate", "0");
+        p.setProperty("WriteBufferSize", "64");
+        p.setProperty("ReadCacheSize", "64");
+        p.setProperty("Storage", "mmap");
+        p.setProperty("MaxOpenFiles", "256");
+        p.setProperty("Allocation", "sparse");
 
         p.setProperty("Ui.Swing.BasePath", System.getProperty("user.home"));
     }
@@ -70,6 +79,17 @@ public class Config extends Properties {
 
         if (! validateInt("ListenPort", defaults)) r = false;
         if (! validateBoolean("DHT", defaults)) r = false;
+        if (! validateInt("EventLoops", defaults)) r = false;
+        if (! validateBoolean("VirtualThreads", defaults)) r = false;
+        if (! validateInt("RequestTimeout", defaults)) r = false;
+        if (! validateInt("RecheckRate", defaults)) r = false;
+        if (! validateInt("WriteBufferSize", defaults)) r = false;
+        if (! validateInt("ReadCacheSize", defaults)) r = false;
+        if (! validateChoice("Storage", defaults,
+                             "mmap", "channel", "memory")) r = false;
+        if (! validateInt("MaxOpenFiles", defaults)) r = false;
+        if (! validateChoice("Allocation", defaults,
+                             "sparse", "full")) r = false;
 
         if (! validateDirectory("Ui.Swing.BasePath", defaults)) r = false;
 
@@ -190,6 +210,25 @@ public class Config extends Properties {
         return false;
     }
 
+    /**
+     * Returns true if the property accessed by key is one of choices.
+     * Otherwise set the property to the default value in defaults and return
+     * false. The value of the properties in defaults are not validated.
+     */
+    private boolean validateChoice (String key, Properties defaults,
+                                    String... choices) {
+        String value = getProperty(key);
+        for (String choice: choices) {
+            if (choice.equals(value)) return true;
+        }
+
+        String dvalue = defaults.getProperty(key);
+        LOG.warning("Uknown value \"" + value +"\" for property \""
+                    + key + "\" Using default value \"" + dvalue + "\"");
+        setProperty(key, dvalue);
+        return false;
+    }
+
     /**
      * Returns the boolean represented by string or false.
      */
@@ -0,0 +1,97 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.util;
+
+import torrefactor.util.Logger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * This class contains static helper functions to release the memory
+ * mappings of MappedByteBuffer.
+ *
+ * Java only unmaps a MappedByteBuffer once it is garbage collected, which
+ * may take a long time for a buffer which has survived a few collections.
+ * unmap() releases it right away with sun.misc.Unsafe.invokeCleaner() (Java
+ * 9 and later) or with the cleaner of the buffer (before Java 9), looked up
+ * by reflection since they are not part of the public API.
+ */
+public class MappedBuffers {
+    private static final Logger LOG = new Logger();
+
+    // sun.misc.Unsafe.theUnsafe and sun.misc.Unsafe.invokeCleaner()
+    private static Object unsafe;
+    private static Method invokeCleaner;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+                                                  ByteBuffer.class);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+    }
+
+    /**
+     * Unmaps the buffer right away. The buffer and all the buffers created
+     * from it (slices, duplicates) must not be used anymore, accessing them
+     * would crash the JVM.
+     *
+     * @param buffer    the buffer to unmap
+     * @return false if the buffer couldn't be unmapped, it will then be
+     *         unmapped once it is garbage collected
+     */
+    public static boolean unmap (MappedByteBuffer buffer) {
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+                return true;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            Method clean = cleaner.getClass().getMethod("clean");
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            LOG.debug("Couldn't unmap buffer: " + e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package torrefactor.util;
+
+import torrefactor.util.Config;
+import torrefactor.util.Logger;
+
+import java.lang.reflect.Method;
+
+/**
+ * This class contains static helper functions to create the threads used by
+ * torrefactor.
+ *
+ * When the "VirtualThreads" property is set and the JVM supports them (Java
+ * 21 and later), virtual threads are created: they are cheap enough to have
+ * one (or two) per connection and still block on I/O. Otherwise, normal
+ * threads are created.
+ */
+public class Threads {
+    private static final Logger LOG = new Logger();
+
+    // Thread.ofVirtual(), Thread.Builder.name() and Thread.Builder.unstarted()
+    // looked up by reflection since they don't exist before Java 21.
+    private static Method ofVirtual;
+    private static Method name;
+    private static Method unstarted;
+
+    static {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+    }
+
+    /**
+     * Returns true if the JVM supports virtual threads.
+     */
+    public static boolean virtualThreadsSupported () {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Returns true if newThread() creates virtual threads.
+     */
+    public static boolean useVirtualThreads () {
+        return virtualThreadsSupported()
+               && Config.getConfig().getPropertyBoolean("VirtualThreads");
+    }
+
+    /**
+     * Creates a new (not started) thread running runnable. It is a virtual
+     * thread if useVirtualThreads() returns true.
+     *
+     * @param runnable  the Runnable to run in the thread
+     * @param threadName the name of the thread
+     */
+    public static Thread newThread (Runnable runnable, String threadName) {
+        if (useVirtualThreads()) {
+            try {
+                Object builder = ofVirtual.invoke(null);
+                builder = name.invoke(builder, threadName);
+                return (Thread) unstarted.invoke(builder, runnable);
+            } catch (Exception e) {
+                LOG.error("Couldn't create virtual thread: " + e);
+            }
+        }
+        return new Thread(runnable, threadName);
+    }
+
+    /**
+     * Creates and starts a new thread running runnable.
+     *
+     * @see #newThread(Runnable, String)
+     */
+    public static Thread start (Runnable runnable, String threadName) {
+        Thread thread = newThread(runnable, threadName);
+        thread.start();
+        return thread;
+    }
+}
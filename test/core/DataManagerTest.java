@@ -32,10 +32,13 @@ import org.junit.Assert;
 import static org.junit.Assert.*;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 import torrefactor.core.DataManager;
-import torrefactor.core.DataBlock;
+import torrefactor.core.FileRegion;
+import torrefactor.core.WriteBuffers;
 import torrefactor.util.Pair;
 
 
@@ -177,4 +180,94 @@ public class DataManagerTest {
         assertTrue(Arrays.equals(blockData, blockDataExpected));
 
     }
+
+    @Test public void testFileRegionsMultipleFiles()
+    throws Exception {
+        System.out.print('\n');
+        int pieceSize = 4;
+        byte[] blockDataExpected = {
+            0x0A & 0xFF, 0x37 & 0xFF, 0x37 & 0xFF, 0x38 & 0xFF };
+
+        DataManager dataManager = TestData.dataManager();
+
+        FileRegion[] regions = dataManager.getFileRegions(3, 2, pieceSize);
+        assertEquals(2, regions.length);
+        assertEquals(1, regions[0].remaining());
+        assertEquals(3, regions[1].remaining());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (FileRegion region: regions) {
+            while (region.remaining() > 0) {
+                region.transferTo(channel);
+            }
+        }
+        byte[] blockData = out.toByteArray();
+        System.out.print("Read: ");
+        printByteArray(blockData);
+        System.out.print("Expe: ");
+        printByteArray(blockDataExpected);
+        assertTrue(Arrays.equals(blockData, blockDataExpected));
+    }
+
+    /**
+     * Reads the given block of the files with FileRegion.read().
+     */
+    private static byte[] readRegions(DataManager dataManager, int piece,
+                                      int offset, int length)
+    throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (FileRegion region:
+                dataManager.getFileRegions(piece, offset, length)) {
+            while (region.remaining() > 0) {
+                region.read(buffer);
+            }
+        }
+        return buffer.array();
+    }
+
+    @Test public void testWriteBuffer()
+    throws Exception {
+        int pieceSize = 4;
+        DataManager dataManager = TestData.dataManager();
+        dataManager.setWriteBuffers(new WriteBuffers(2 * pieceSize));
+
+        // Piece 3 spans both files
+        byte[] dataExpected = readRegions(dataManager, 3, 0, pieceSize);
+        byte[] dataMod = new byte[] {
+            0x10 & 0xFF, 0x10 & 0xFF, 0x10 & 0xFF, 0x10 & 0xFF };
+
+        // Dropped buffers are not written
+        assertTrue(dataManager.bufferPiece(3));
+        dataManager.putBlock(3, 0, dataMod);
+        dataManager.dropPiece(3);
+        assertTrue(Arrays.equals(dataExpected,
+                                 readRegions(dataManager, 3, 0, pieceSize)));
+
+        // Buffered blocks are only written by writePiece()
+        assertTrue(dataManager.bufferPiece(3));
+        dataManager.putBlock(3, 0, Arrays.copyOfRange(dataMod, 0, 2));
+        dataManager.putBlock(3, 2, Arrays.copyOfRange(dataMod, 2, 4));
+        assertTrue(Arrays.equals(dataExpected,
+                                 readRegions(dataManager, 3, 0, pieceSize)));
+        assertEquals(Arrays.asList(3), dataManager.bufferedPieces());
+        dataManager.writePiece(3);
+        assertTrue(dataManager.bufferedPieces().isEmpty());
+        assertTrue(Arrays.equals(dataMod,
+                                 readRegions(dataManager, 3, 0, pieceSize)));
+
+        // At most 2 pieces are buffered
+        assertTrue(dataManager.bufferPiece(0));
+        assertTrue(dataManager.bufferPiece(1));
+        assertFalse(dataManager.bufferPiece(2));
+        dataManager.dropPiece(0);
+        dataManager.dropPiece(1);
+
+        // Restore the file
+        assertTrue(dataManager.bufferPiece(3));
+        dataManager.putBlock(3, 0, dataExpected);
+        dataManager.writePiece(3);
+        assertTrue(Arrays.equals(dataExpected,
+                                 readRegions(dataManager, 3, 0, pieceSize)));
+    }
 }
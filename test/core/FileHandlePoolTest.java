@@ -0,0 +1,149 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import torrefactor.core.FileHandlePool;
+
+
+public class FileHandlePoolTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.FileHandlePoolTest");
+    }
+
+    private static File tempFile ()
+    throws IOException {
+        File file = File.createTempFile("handles", null);
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test public void testLazyOpen()
+    throws Exception {
+        FileHandlePool pool = new FileHandlePool(2);
+        File file = tempFile();
+        assertFalse(file.exists());
+        assertNull(pool.acquireIfOpen(file));
+
+        FileHandlePool.Handle handle = pool.acquire(file, 42);
+        pool.release(handle);
+        assertEquals(42, file.length());
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.opened());
+
+        // Already open
+        assertSame(handle, pool.acquire(file, 42));
+        pool.release(handle);
+        assertEquals(1, pool.opened());
+        pool.close(file);
+        assertFalse(handle.channel().isOpen());
+    }
+
+    @Test public void testConcurrentOpen()
+    throws Exception {
+        final FileHandlePool pool = new FileHandlePool(2);
+        final File file = tempFile();
+        final FileHandlePool.Handle[] handles = new FileHandlePool.Handle[8];
+        Thread[] threads = new Thread[handles.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        handles[index] = pool.acquire(file, 42);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        // A file opened by several threads at once is only kept once
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.opened());
+        for (FileHandlePool.Handle handle: handles) {
+            assertSame(handles[0], handle);
+            pool.release(handle);
+        }
+        assertTrue(handles[0].channel().isOpen());
+        pool.close(file);
+        assertFalse(handles[0].channel().isOpen());
+    }
+
+    @Test public void testEviction()
+    throws Exception {
+        FileHandlePool pool = new FileHandlePool(2);
+        File[] files = new File[] {tempFile(), tempFile(), tempFile()};
+        FileHandlePool.Handle[] handles = new FileHandlePool.Handle[3];
+        for (int i = 0; i < 2; i++) {
+            handles[i] = pool.acquire(files[i], 4);
+            pool.release(handles[i]);
+        }
+        // files[0] becomes the most recently used
+        pool.release(pool.acquire(files[0], 4));
+
+        handles[2] = pool.acquire(files[2], 4);
+        pool.release(handles[2]);
+        assertEquals(2, pool.size());
+        assertEquals(3, pool.opened());
+        assertEquals(1, pool.evicted());
+        assertTrue(handles[0].channel().isOpen());
+        assertFalse(handles[1].channel().isOpen());
+        assertTrue(handles[2].channel().isOpen());
+
+        for (File file: files) {
+            pool.close(file);
+        }
+        assertEquals(0, pool.size());
+    }
+
+    @Test public void testEvictionInUse()
+    throws Exception {
+        FileHandlePool pool = new FileHandlePool(1);
+        File first = tempFile();
+        File second = tempFile();
+        FileHandlePool.Handle handle = pool.acquire(first, 4);
+        pool.release(pool.acquire(second, 4));
+
+        // first is evicted but only closed once released
+        assertEquals(1, pool.evicted());
+        assertTrue(handle.channel().isOpen());
+        pool.release(handle);
+        assertFalse(handle.channel().isOpen());
+        pool.close(second);
+    }
+}
@@ -196,4 +196,80 @@ public class IntervalMapTest {
         IntervalMap m = init();
         assertFalse(m.removeIntervals(500, 42));
     }
+
+    @Test public void nextFreePoint() {
+        IntervalMap m = init();
+        assertEquals(0, m.nextFreePoint(0));
+        assertEquals(51, m.nextFreePoint(10));
+        assertEquals(51, m.nextFreePoint(50));
+        assertEquals(51, m.nextFreePoint(51));
+        assertEquals(141, m.nextFreePoint(120));
+        assertEquals(500, m.nextFreePoint(500));
+    }
+
+    @Test public void containsInterval() {
+        IntervalMap m = init();
+        assertTrue(m.containsInterval(10, 41));
+        assertTrue(m.containsInterval(20, 10));
+        assertFalse(m.containsInterval(40, 20));
+        assertFalse(m.containsInterval(0, 5));
+        assertFalse(m.containsInterval(60, 1));
+    }
+
+    @Test public void intersects() {
+        IntervalMap m = init();
+        assertTrue(m.intersects(0, 11));
+        assertTrue(m.intersects(50, 50));
+        assertTrue(m.intersects(20, 10));
+        assertTrue(m.intersects(0, 500));
+        assertFalse(m.intersects(0, 10));
+        assertFalse(m.intersects(51, 49));
+        assertFalse(m.intersects(141, 100));
+    }
+
+    //  Adding the blocks in any order must end up with one interval
+    @Test public void manyBlocks() {
+        IntervalMap m = new IntervalMap();
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(m.addInterval(i * 10, 10));
+        }
+        assertEquals(500, m.size());
+        for (int i = 999; i > 0; i -= 2) {
+            assertTrue(m.addInterval(i * 10, 10));
+        }
+        assertEquals(1, m.size());
+        checkBounds(m, 0, 9999);
+    }
+
+    @Test public void snapshot() {
+        IntervalMap m = init();
+        assertArrayEquals(new long[] {10, 50, 100, 140}, m.snapshot());
+        m.removeIntervals(0, 200);
+        assertEquals(0, m.snapshot().length);
+    }
+
+    @Test public void concurrentSnapshot() throws Exception {
+        final IntervalMap m = new IntervalMap();
+        Thread writer = new Thread() {
+            public void run() {
+                // Grows the arrays and shifts the intervals
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < 1000; i++) {
+                        m.addInterval(i * 10, 5);
+                    }
+                    m.removeIntervals(0, 10000);
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            long[] copy = m.snapshot();
+            for (int i = 0; i < copy.length; i += 2) {
+                assertEquals(4, copy[i + 1] - copy[i]);
+                assertEquals(0, copy[i] % 10);
+                if (i > 0) assertTrue(copy[i] > copy[i - 1]);
+            }
+        }
+        writer.join();
+    }
 }
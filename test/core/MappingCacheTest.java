@@ -0,0 +1,123 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import torrefactor.core.ChannelStorage;
+import torrefactor.core.FileHandlePool;
+import torrefactor.core.MappingCache;
+
+
+public class MappingCacheTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.MappingCacheTest");
+    }
+
+    // Content of data/test/DataManager/test1 and test2
+    private static final byte[] DATA1 = "00112233445566\n".getBytes();
+    private static final byte[] DATA2 = "778899\n".getBytes();
+
+    private static final File[] FILES = new File[] {
+        new File("data/test/DataManager/test1"),
+        new File("data/test/DataManager/test2")};
+
+    // A single open file, the windows must stay usable once their file
+    // is closed
+    private static ChannelStorage storage () {
+        return new ChannelStorage(FILES,
+                new long[] {DATA1.length, DATA2.length},
+                new FileHandlePool(1));
+    }
+
+    @Test public void testRead()
+    throws Exception {
+        MappingCache cache = new MappingCache(storage(), 2);
+        byte[] array = new byte[6];
+        cache.read(0, 2, ByteBuffer.wrap(array, 0, 4));
+        cache.read(1, 0, ByteBuffer.wrap(array, 4, 2));
+        assertArrayEquals("112277".getBytes(), array);
+        assertEquals(2, cache.size());
+
+        // The windows are reused
+        int live = MappingCache.liveMappings();
+        cache.read(0, 10, ByteBuffer.wrap(array, 0, 5));
+        cache.read(1, 2, ByteBuffer.wrap(array, 0, 5));
+        assertEquals(live, MappingCache.liveMappings());
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(live - 2, MappingCache.liveMappings());
+    }
+
+    @Test public void testEviction()
+    throws Exception {
+        MappingCache cache = new MappingCache(storage(), 1);
+        int live = MappingCache.liveMappings();
+        byte[] array = new byte[1];
+        for (int i = 0; i < 10; i++) {
+            cache.read(i % 2, 0, ByteBuffer.wrap(array, 0, 1));
+            assertEquals(i % 2 == 0 ? DATA1[0] : DATA2[0], array[0]);
+            assertEquals(1, cache.size());
+            assertEquals(live + 1, MappingCache.liveMappings());
+        }
+        cache.clear();
+        assertEquals(live, MappingCache.liveMappings());
+    }
+
+    @Test public void testWrite()
+    throws Exception {
+        MappingCache cache = new MappingCache(storage(), 1);
+        byte[] array = new byte[DATA2.length];
+        cache.write(1, 0, ByteBuffer.wrap("abcdef\n".getBytes()));
+        // Read from file 0 to unmap the window of file 1
+        cache.read(0, 0, ByteBuffer.wrap(array, 0, 1));
+        cache.read(1, 0, ByteBuffer.wrap(array, 0, DATA2.length));
+        assertArrayEquals("abcdef\n".getBytes(), array);
+
+        // Restore the file
+        cache.write(1, 0, ByteBuffer.wrap(DATA2));
+        cache.read(1, 0, ByteBuffer.wrap(array, 0, DATA2.length));
+        assertArrayEquals(DATA2, array);
+        cache.clear();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testOutside()
+    throws Exception {
+        MappingCache cache = new MappingCache(storage(), 1);
+        cache.read(1, 4, ByteBuffer.wrap(new byte[4]));
+    }
+}
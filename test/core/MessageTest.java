@@ -0,0 +1,70 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import torrefactor.core.DataBlockInfo;
+import torrefactor.core.messages.*;
+
+
+public class MessageTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.MessageTest");
+    }
+
+    private static void assertSameEncoding (Message msg) {
+        byte[] expected = msg.toByteArray();
+        assertEquals(expected.length, msg.length());
+
+        ByteBuffer buffer = ByteBuffer.allocate(msg.length());
+        msg.writeTo(buffer);
+        assertEquals(0, buffer.remaining());
+        assertTrue(Arrays.equals(expected, buffer.array()));
+    }
+
+    @Test public void testWriteTo() {
+        DataBlockInfo info = new DataBlockInfo(3, 1 << 14, 1 << 14);
+        assertSameEncoding(new KeepAliveMessage());
+        assertSameEncoding(new ChokeMessage());
+        assertSameEncoding(new UnchokeMessage());
+        assertSameEncoding(new InterestedMessage());
+        assertSameEncoding(new NotInterestedMessage());
+        assertSameEncoding(new HaveMessage(123456));
+        assertSameEncoding(new BitfieldMessage(new byte[] {1, 2, 3, -1}));
+        assertSameEncoding(new RequestMessage(info));
+        assertSameEncoding(new CancelMessage(info));
+        assertSameEncoding(new PieceMessage(3, 16, new byte[] {4, 5, 6}));
+        assertSameEncoding(new PortMessage(51413));
+    }
+}
@@ -0,0 +1,153 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static test.core.TestData.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import torrefactor.core.DataManager;
+import torrefactor.core.PieceCache;
+
+
+public class PieceCacheTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.PieceCacheTest");
+    }
+
+    private static byte[] toArray (ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+
+    @Test public void testGetBlock()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        PieceCache cache = new PieceCache(1 << 10);
+        for (int piece = 0; piece < dataManager.piecesNumber(); piece++) {
+            int begin = 4*piece;
+            int end = Math.min(begin + 4, DATA.length);
+            assertArrayEquals(Arrays.copyOfRange(DATA, begin, end),
+                    toArray(cache.getBlock(dataManager, piece, 0,
+                                           end - begin)));
+        }
+        assertEquals(DATA.length, cache.size());
+        assertEquals(0, cache.hits());
+        assertEquals(dataManager.piecesNumber(), cache.misses());
+
+        // Piece 3 spans both files
+        assertArrayEquals(Arrays.copyOfRange(DATA, 14, 16),
+                          toArray(cache.getBlock(dataManager, 3, 2, 2)));
+        assertEquals(1, cache.hits());
+    }
+
+    @Test public void testEviction()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        // Room for two pieces
+        PieceCache cache = new PieceCache(8);
+        cache.getBlock(dataManager, 0, 0, 1);
+        cache.getBlock(dataManager, 1, 0, 1);
+        cache.getBlock(dataManager, 0, 1, 1);
+        assertEquals(1, cache.hits());
+        // Piece 1 is the least recently used
+        cache.getBlock(dataManager, 2, 0, 1);
+        assertEquals(8, cache.size());
+        cache.getBlock(dataManager, 0, 0, 1);
+        assertEquals(2, cache.hits());
+        cache.getBlock(dataManager, 1, 0, 1);
+        assertEquals(2, cache.hits());
+        assertEquals(4, cache.misses());
+    }
+
+    @Test public void testInvalidate()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        PieceCache cache = new PieceCache(1 << 10);
+        cache.getBlock(dataManager, 0, 0, 4);
+        cache.getBlock(dataManager, 1, 0, 4);
+        cache.invalidate(dataManager, 0);
+        assertEquals(4, cache.size());
+        cache.getBlock(dataManager, 0, 0, 4);
+        assertEquals(2 + 1, cache.misses());
+        cache.invalidate(dataManager);
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void testInvalidateWhileReading()
+    throws Exception {
+        final PieceCache cache = new PieceCache(1 << 10);
+        // The piece is invalidated while it's read, as if it were written
+        // meanwhile
+        DataManager dataManager = new DataManager(files(), 4) {
+            @Override
+            public void read (long position, ByteBuffer dst)
+            throws IOException {
+                super.read(position, dst);
+                cache.invalidate(this, 0);
+            }
+        };
+        assertArrayEquals(Arrays.copyOfRange(DATA, 0, 4),
+                          toArray(cache.getBlock(dataManager, 0, 0, 4)));
+        assertEquals(0, cache.size());
+        cache.getBlock(dataManager, 1, 0, 4);
+        assertEquals(4, cache.size());
+    }
+
+    @Test public void testGetCachedBlock()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        PieceCache cache = new PieceCache(1 << 10);
+        // A miss loads the piece in the background
+        assertNull(cache.getCachedBlock(dataManager, 3, 0, 4));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertArrayEquals(Arrays.copyOfRange(DATA, 12, 16),
+                toArray(cache.getCachedBlock(dataManager, 3, 0, 4)));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test public void testDisabled()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        PieceCache cache = new PieceCache(0);
+        assertFalse(cache.isEnabled());
+        assertArrayEquals(Arrays.copyOfRange(DATA, 0, 4),
+                          toArray(cache.getBlock(dataManager, 0, 0, 4)));
+        assertEquals(0, cache.size());
+    }
+}
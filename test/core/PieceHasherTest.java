@@ -0,0 +1,129 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static test.core.TestData.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+import torrefactor.core.DataManager;
+import torrefactor.core.PieceHasher;
+
+
+public class PieceHasherTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.PieceHasherTest");
+    }
+
+    private static byte[] sha1 (int piece)
+    throws Exception {
+        int begin = 4*piece;
+        int end = Math.min(begin + 4, DATA.length);
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        digest.update(DATA, begin, end - begin);
+        return digest.digest();
+    }
+
+    @Test public void testCheck()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        for (int piece = 0; piece < dataManager.piecesNumber(); piece++) {
+            byte[] expected = sha1(piece);
+            assertTrue(PieceHasher.check(dataManager, piece, expected));
+            assertFalse(PieceHasher.check(dataManager, piece, new byte[20]));
+        }
+    }
+
+    @Test public void testCheckPartialDigest()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        // Piece 3 spans both files, its first 2 bytes are already hashed
+        for (int from = 0; from <= 4; from += 2) {
+            MessageDigest digest = MessageDigest.getInstance("SHA1");
+            digest.update(DATA, 12, from);
+            assertTrue(PieceHasher.check(dataManager, 3, digest, from,
+                                         sha1(3)));
+        }
+    }
+
+    @Test public void testSubmit()
+    throws Exception {
+        final DataManager dataManager = dataManager();
+        final int piecesNumber = dataManager.piecesNumber();
+        final boolean[] results = new boolean[piecesNumber];
+        final CountDownLatch latch = new CountDownLatch(piecesNumber);
+        PieceHasher hasher = new PieceHasher(2);
+        for (int piece = 0; piece < piecesNumber; piece++) {
+            // Only the even pieces have the right digest
+            byte[] expected = piece % 2 == 0
+                              ? sha1(piece)
+                              : new byte[20];
+            hasher.submit(dataManager, piece, expected,
+                          new PieceHasher.Listener() {
+                public void onPieceHashed (int piece, boolean valid) {
+                    results[piece] = valid;
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int piece = 0; piece < piecesNumber; piece++) {
+            assertEquals(piece % 2 == 0, results[piece]);
+        }
+    }
+
+    @Test public void testSubmitFailure()
+    throws Exception {
+        DataManager dataManager = new DataManager(files(), 4) {
+            @Override
+            public void read (long position, ByteBuffer dst) {
+                throw new IllegalStateException("Closed");
+            }
+        };
+        final boolean[] result = new boolean[] {true};
+        final CountDownLatch latch = new CountDownLatch(1);
+        PieceHasher hasher = new PieceHasher(1);
+        // The listener must be told even if the check fails unexpectedly
+        hasher.submit(dataManager, 0, sha1(0), new PieceHasher.Listener() {
+            public void onPieceHashed (int piece, boolean valid) {
+                result[0] = valid;
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertFalse(result[0]);
+        assertFalse(hasher.isSaturated());
+    }
+}
@@ -0,0 +1,122 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static test.core.TestData.*;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+import torrefactor.core.DataManager;
+import torrefactor.core.PieceRecheck;
+
+
+public class PieceRecheckTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.PieceRecheckTest");
+    }
+
+    /**
+     * Returns the concatenated SHA1 of the pieces, only the even pieces
+     * have the right one.
+     */
+    private static byte[] digests (int piecesNumber)
+    throws Exception {
+        byte[] digests = new byte[20 * piecesNumber];
+        for (int piece = 0; piece < piecesNumber; piece += 2) {
+            int begin = 4*piece;
+            int end = Math.min(begin + 4, DATA.length);
+            MessageDigest digest = MessageDigest.getInstance("SHA1");
+            digest.update(DATA, begin, end - begin);
+            System.arraycopy(digest.digest(), 0, digests, 20*piece, 20);
+        }
+        return digests;
+    }
+
+    /**
+     * Records the results of a recheck.
+     */
+    private static class Results implements PieceRecheck.Listener {
+        final Map<Integer, Boolean> valid = new HashMap<Integer, Boolean>();
+
+        public synchronized void onPieceRechecked (int piece, boolean valid) {
+            assertNull(this.valid.put(piece, valid));
+        }
+    }
+
+    @Test public void testRun()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        int piecesNumber = dataManager.piecesNumber();
+        Results results = new Results();
+        PieceRecheck recheck = new PieceRecheck(dataManager,
+                digests(piecesNumber), 0, piecesNumber, 0, results);
+        recheck.run();
+        assertEquals(piecesNumber, recheck.total());
+        assertEquals(piecesNumber, recheck.checked());
+        assertEquals(piecesNumber, results.valid.size());
+        for (int piece = 0; piece < piecesNumber; piece++) {
+            assertEquals(piece % 2 == 0, results.valid.get(piece));
+        }
+    }
+
+    @Test public void testRange()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        int piecesNumber = dataManager.piecesNumber();
+        Results results = new Results();
+        // Pieces 3 and 4 span both files
+        PieceRecheck recheck = new PieceRecheck(dataManager,
+                digests(piecesNumber), 2, piecesNumber, 0, results);
+        recheck.run();
+        assertEquals(piecesNumber - 2, recheck.checked());
+        assertFalse(results.valid.containsKey(0));
+        assertFalse(results.valid.containsKey(1));
+        for (int piece = 2; piece < piecesNumber; piece++) {
+            assertEquals(piece % 2 == 0, results.valid.get(piece));
+        }
+    }
+
+    @Test public void testThrottle()
+    throws Exception {
+        DataManager dataManager = dataManager();
+        int piecesNumber = dataManager.piecesNumber();
+        Results results = new Results();
+        // 22 bytes at 100 bytes per second
+        PieceRecheck recheck = new PieceRecheck(dataManager,
+                digests(piecesNumber), 0, piecesNumber, 100, results);
+        long start = System.currentTimeMillis();
+        recheck.run();
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(piecesNumber, results.valid.size());
+    }
+}
@@ -0,0 +1,128 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import torrefactor.core.*;
+import torrefactor.util.Pair;
+
+
+public class PreallocatorTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.PreallocatorTest");
+    }
+
+    private static File tempFile ()
+    throws IOException {
+        File file = File.createTempFile("preallocator", null);
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Three files of 3 MiB + 5 bytes, 10 bytes and 7 bytes, the second one
+     * already contains "abc".
+     */
+    private static DataManager dataManager (File[] files, String allocation)
+    throws IOException {
+        List<Pair<File, Long>> pairs = new ArrayList<Pair<File, Long>>();
+        long[] sizes = new long[] {(3 << 20) + 5, 10, 7};
+        for (int i = 0; i < files.length; i++) {
+            pairs.add(new Pair<File, Long>(files[i], sizes[i]));
+        }
+        DataManager dataManager = new DataManager(pairs, 4, "channel",
+                                                  new FileHandlePool(1));
+        dataManager.setAllocation(allocation);
+        return dataManager;
+    }
+
+    private static File[] files ()
+    throws IOException {
+        File[] files = new File[] {tempFile(), tempFile(), tempFile()};
+        FileOutputStream out = new FileOutputStream(files[1]);
+        try {
+            out.write("abc".getBytes());
+        } finally {
+            out.close();
+        }
+        return files;
+    }
+
+    @Test public void testSparse()
+    throws Exception {
+        File[] files = files();
+        DataManager dataManager = dataManager(files, "sparse");
+        assertFalse(dataManager.needsAllocation());
+        dataManager.putBlock(0, 0, "0123".getBytes());
+        // The file is given its size when it's opened
+        assertEquals((3 << 20) + 5, files[0].length());
+        dataManager.close();
+    }
+
+    @Test public void testFull()
+    throws Exception {
+        File[] files = files();
+        DataManager dataManager = dataManager(files, "full");
+        dataManager.setFilePriority(2, 0);
+        assertTrue(dataManager.needsAllocation());
+
+        Preallocator preallocator = new Preallocator(dataManager);
+        preallocator.run();
+        assertEquals((3 << 20) + 5 + 7, preallocator.total());
+        assertEquals(preallocator.total(), preallocator.allocated());
+        assertEquals((3 << 20) + 5, files[0].length());
+        assertEquals(10, files[1].length());
+        // Files with a priority of 0 are skipped
+        assertFalse(files[2].exists());
+
+        // The existing data is kept, the piece begins with the last byte of
+        // the first file
+        byte[] data = dataManager.getBlock(786433, 0, 4);
+        assertArrayEquals(new byte[] {0, 'a', 'b', 'c'}, data);
+        dataManager.close();
+    }
+
+    @Test public void testCancel()
+    throws Exception {
+        File[] files = files();
+        DataManager dataManager = dataManager(files, "full");
+        Preallocator preallocator = new Preallocator(dataManager);
+        preallocator.cancel();
+        preallocator.run();
+        assertEquals(0, preallocator.allocated());
+        assertFalse(files[0].exists());
+        dataManager.close();
+    }
+}
@@ -0,0 +1,118 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import torrefactor.core.RarestFirstPiecePicker;
+import torrefactor.util.Bitfield;
+
+
+public class RarestFirstPiecePickerTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.RarestFirstPiecePickerTest");
+    }
+
+    /**
+     * Checks that the pieces are sorted by availability and that each piece
+     * appears once.
+     */
+    private static void assertSorted (RarestFirstPiecePicker picker, int n) {
+        Set<Integer> seen = new HashSet<Integer>();
+        int last = -1;
+        for (int rank = 0; rank < n; rank++) {
+            int piece = picker.pieceAt(rank);
+            assertTrue(seen.add(piece));
+            assertTrue(picker.availability(piece) >= last);
+            last = picker.availability(piece);
+        }
+    }
+
+    @Test public void testRarestFirst() {
+        RarestFirstPiecePicker picker =
+            new RarestFirstPiecePicker(12, new Random(42));
+        // Pieces 0-7 and 8-11
+        picker.addBitfield(
+            new Bitfield(new byte[] {(byte) 0xFF, (byte) 0xF0}, 12));
+        picker.addBitfield(
+            new Bitfield(new byte[] {(byte) 0xFF, (byte) 0x00}, 12));
+        picker.addPiece(3);
+        assertSorted(picker, 12);
+
+        assertEquals(3, picker.availability(3));
+        assertEquals(3, picker.pieceAt(11));
+        for (int rank = 0; rank < 4; rank++) {
+            assertTrue(picker.pieceAt(rank) >= 8);
+        }
+
+        picker.removeBitfield(
+            new Bitfield(new byte[] {(byte) 0xFF, (byte) 0x00}, 12));
+        assertSorted(picker, 12);
+        assertEquals(2, picker.availability(3));
+        assertEquals(1, picker.availability(0));
+        assertEquals(1, picker.availability(8));
+        assertEquals(3, picker.pieceAt(11));
+    }
+
+    @Test public void testRandomTies() {
+        // With enough pieces, two pickers shouldn't have the same order
+        RarestFirstPiecePicker a = new RarestFirstPiecePicker(64);
+        RarestFirstPiecePicker b = new RarestFirstPiecePicker(64);
+        boolean same = true;
+        for (int rank = 0; rank < 64; rank++) {
+            same &= a.pieceAt(rank) == b.pieceAt(rank);
+        }
+        assertFalse(same);
+    }
+
+    @Test public void testManyPeers() {
+        int n = 100;
+        Random random = new Random(1);
+        RarestFirstPiecePicker picker = new RarestFirstPiecePicker(n, random);
+        List<Bitfield> bitfields = new ArrayList<Bitfield>();
+        for (int p = 0; p < 20; p++) {
+            byte[] bytes = new byte[(n + 7) / 8];
+            random.nextBytes(bytes);
+            Bitfield bitfield = new Bitfield(bytes, n);
+            bitfields.add(bitfield);
+            picker.addBitfield(bitfield);
+            assertSorted(picker, n);
+        }
+        for (Bitfield bitfield: bitfields) {
+            picker.removeBitfield(bitfield);
+            assertSorted(picker, n);
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals(0, picker.availability(i));
+        }
+    }
+}
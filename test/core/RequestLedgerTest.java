@@ -0,0 +1,97 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import torrefactor.core.DataBlockInfo;
+import torrefactor.core.RequestLedger;
+
+import java.util.List;
+
+
+public class RequestLedgerTest {
+    static final int BLOCK = 1 << 14;
+    static final long S = 1000000000L;
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.RequestLedgerTest");
+    }
+
+    @Test public void testAddRemove() {
+        RequestLedger ledger = new RequestLedger(60 * S);
+        Object peer = new Object();
+        ledger.add(new DataBlockInfo(3, BLOCK, BLOCK), peer, 0);
+        assertTrue(ledger.contains(3, BLOCK));
+        assertFalse(ledger.contains(3, 0));
+        assertFalse(ledger.contains(4, BLOCK));
+        assertSame(peer, ledger.owner(3, BLOCK));
+
+        assertEquals(new DataBlockInfo(3, BLOCK, BLOCK),
+                     ledger.remove(3, BLOCK));
+        assertNull(ledger.remove(3, BLOCK));
+        assertEquals(0, ledger.size());
+    }
+
+    @Test public void testRemoveOwner() {
+        RequestLedger ledger = new RequestLedger(60 * S);
+        Object peer1 = new Object();
+        Object peer2 = new Object();
+        for (int i = 0; i < 10; i++) {
+            ledger.add(new DataBlockInfo(i, 0, BLOCK), peer1, 0);
+            ledger.add(new DataBlockInfo(i, BLOCK, BLOCK), peer2, 0);
+        }
+        // Requesting a block again moves it to the new owner
+        ledger.add(new DataBlockInfo(0, 0, BLOCK), peer2, 0);
+
+        assertEquals(9, ledger.removeOwner(peer1));
+        assertEquals(0, ledger.removeOwner(peer1));
+        assertEquals(11, ledger.size());
+        assertTrue(ledger.contains(0, 0));
+        assertFalse(ledger.contains(1, 0));
+        assertTrue(ledger.contains(1, BLOCK));
+    }
+
+    @Test public void testExpire() {
+        RequestLedger ledger = new RequestLedger(60 * S);
+        Object peer = new Object();
+        for (int i = 0; i < 10; i++) {
+            ledger.add(new DataBlockInfo(i, 0, BLOCK), peer, i * S);
+        }
+        assertTrue(ledger.expire(60 * S - 1).isEmpty());
+
+        List<DataBlockInfo> expired = ledger.expire(64 * S);
+        assertEquals(5, expired.size());
+        assertEquals(new DataBlockInfo(0, 0, BLOCK), expired.get(0));
+        assertEquals(new DataBlockInfo(4, 0, BLOCK), expired.get(4));
+        assertFalse(ledger.contains(4, 0));
+        assertTrue(ledger.contains(5, 0));
+        assertEquals(5, ledger.removeOwner(peer));
+    }
+}
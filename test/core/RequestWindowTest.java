@@ -0,0 +1,126 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import torrefactor.core.RequestWindow;
+
+
+public class RequestWindowTest {
+    static final int BLOCK = 1 << 14;
+    static final long MS = 1000000L;
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.RequestWindowTest");
+    }
+
+    /**
+     * Feeds window with blocks delivered at the given rate (in bytes per
+     * second) with the given round-trip time (in ms) during two seconds.
+     */
+    private static void deliver (RequestWindow window, double rate,
+                                 long rtt) {
+        long interval = (long) (BLOCK / rate * 1000 * MS);
+        long now = 1;
+        for (long t = 0; t < 2000 * MS; t += interval) {
+            now += interval;
+            window.onBlock(rtt * MS, true, BLOCK, now);
+        }
+    }
+
+    @Test public void testBandwidthDelayProduct() {
+        RequestWindow window = new RequestWindow(BLOCK);
+        // 1 MB/s with 50ms: the bandwidth-delay product is about 3 blocks
+        deliver(window, 1000000, 50);
+        assertEquals(50, window.rtt(), 0.01);
+        assertEquals(1000000, window.rate(), 20000);
+        assertEquals(7, window.size());
+    }
+
+    @Test public void testBounds() {
+        RequestWindow window = new RequestWindow(BLOCK);
+        deliver(window, 100000000, 100);
+        assertEquals(256, window.size());
+
+        window = new RequestWindow(BLOCK);
+        deliver(window, 100000, 10);
+        assertEquals(4, window.size());
+    }
+
+    /**
+     * Simulates during the given time (in s) a peer which serves the
+     * requests in order at the given rate (in bytes per second) with the
+     * given round-trip time (in ms), while window.size() requests are kept
+     * pending with it: the round-trip time of a request grows with the
+     * requests sent before it.
+     */
+    private static void simulate (RequestWindow window, double rate,
+                                  long rtt, long duration) {
+        long service = (long) (BLOCK / rate * 1000 * MS);
+        // Send and arrival times of the pending requests
+        LinkedList<long[]> pending = new LinkedList<long[]>();
+        long peerFree = 0;
+        long now = 1;
+        while (now < duration * 1000 * MS) {
+            while (pending.size() < window.size()) {
+                long start = Math.max(now + rtt * MS / 2, peerFree);
+                peerFree = start + service;
+                long unqueued = pending.isEmpty() ? 1 : 0;
+                pending.add(new long[] {now, peerFree + rtt * MS / 2,
+                                        unqueued});
+            }
+            long[] request = pending.removeFirst();
+            now = request[1];
+            window.onBlock(now - request[0], request[2] == 1, BLOCK, now);
+        }
+    }
+
+    @Test public void testSlowPeer() {
+        RequestWindow window = new RequestWindow(BLOCK);
+        // 100 KB/s with 20ms: less than a block is in flight
+        simulate(window, 100000, 20, 60);
+        assertEquals(4, window.size());
+        assertEquals(100000, window.rate(), 5000);
+        assertTrue(window.rtt() < 1000);
+    }
+
+    @Test public void testFastPeer() {
+        RequestWindow window = new RequestWindow(BLOCK);
+        // 10 MB/s with 100ms: the bandwidth-delay product is about 62
+        // blocks, the window must grow until the peer is saturated but not
+        // up to MAX_WINDOW
+        simulate(window, 10000000, 100, 60);
+        assertEquals(10000000, window.rate(), 500000);
+        assertTrue(window.size() >= 62 && window.size() <= 130);
+        assertTrue(window.rtt() < 250);
+    }
+}
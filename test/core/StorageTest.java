@@ -0,0 +1,180 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import torrefactor.core.*;
+
+
+public class StorageTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.StorageTest");
+    }
+
+    private static final File[] FILES = new File[] {
+        new File("data/test/DataManager/test1"),
+        new File("data/test/DataManager/test2")};
+    private static final long[] SIZES = new long[] {15, 7};
+
+    // Content of the two files
+    private static final byte[] DATA =
+        "00112233445566\n778899\n".getBytes();
+
+    // A single open file, the files are closed and opened again as the
+    // blocks span them
+    private static FileHandlePool handles () {
+        return new FileHandlePool(1);
+    }
+
+    private static byte[] read (Storage storage, long position, int length,
+                                boolean direct)
+    throws IOException {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(length)
+                                   : ByteBuffer.allocate(length);
+        storage.read(position, buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        byte[] array = new byte[length];
+        buffer.get(array);
+        return array;
+    }
+
+    /**
+     * Reads and writes blocks spanning both files and restores them.
+     */
+    private static void testFileStorage (Storage storage)
+    throws IOException {
+        try {
+            assertTrue(storage.hadData());
+            assertArrayEquals(DATA, read(storage, 0, DATA.length, false));
+            assertArrayEquals(DATA, read(storage, 0, DATA.length, true));
+            assertArrayEquals("6\n77".getBytes(),
+                              read(storage, 13, 4, false));
+
+            storage.write(13, ByteBuffer.wrap("abcd".getBytes()));
+            assertArrayEquals("abcd".getBytes(), read(storage, 13, 4, true));
+            assertEquals(4, storage.bytesWritten());
+
+            // Restore the files
+            ByteBuffer src = ByteBuffer.allocateDirect(4);
+            src.put("6\n77".getBytes()).flip();
+            storage.write(13, src);
+            storage.flush();
+            assertArrayEquals(DATA, read(storage, 0, DATA.length, false));
+
+            FileRegion[] regions = storage.fileRegions(13, 4);
+            assertEquals(2, regions.length);
+            assertEquals(2, regions[0].remaining());
+            assertEquals(2, regions[1].remaining());
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test public void testMappedStorage()
+    throws Exception {
+        testFileStorage(new MappedStorage(FILES, SIZES, handles()));
+    }
+
+    @Test public void testChannelStorage()
+    throws Exception {
+        testFileStorage(new ChannelStorage(FILES, SIZES, handles()));
+    }
+
+    @Test public void testEmptyFiles()
+    throws Exception {
+        File empty1 = File.createTempFile("storage", null);
+        File empty2 = File.createTempFile("storage", null);
+        empty1.deleteOnExit();
+        empty2.deleteOnExit();
+        Storage storage = new ChannelStorage(
+                new File[] {empty1, FILES[0], empty1, empty2, FILES[1],
+                            empty2},
+                new long[] {0, 15, 0, 0, 7, 0}, handles());
+        try {
+            // Every block must be found, whichever file it starts in
+            for (int position = 0; position < DATA.length; position++) {
+                for (int length = 1; position + length <= DATA.length;
+                     length++) {
+                    byte[] expected = new byte[length];
+                    System.arraycopy(DATA, position, expected, 0, length);
+                    assertArrayEquals(expected,
+                                      read(storage, position, length, false));
+                }
+            }
+
+            FileRegion[] regions = storage.fileRegions(13, 4);
+            assertEquals(2, regions.length);
+            assertEquals(2, regions[0].remaining());
+            assertEquals(2, regions[1].remaining());
+            assertEquals(1, storage.fileRegions(15, 7).length);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test public void testMemoryStorage()
+    throws Exception {
+        Storage storage = new MemoryStorage(3L << 20);
+        assertFalse(storage.hadData());
+        assertNull(storage.fileRegions(0, 4));
+        assertArrayEquals(new byte[4], read(storage, 0, 4, false));
+
+        // Write across two chunks
+        long position = (1L << 20) - 11;
+        storage.write(position, ByteBuffer.wrap(DATA));
+        assertArrayEquals(DATA, read(storage, position, DATA.length, false));
+        assertArrayEquals(DATA, read(storage, position, DATA.length, true));
+        assertEquals(DATA.length, storage.bytesWritten());
+        assertEquals(2 * DATA.length + 4, storage.bytesRead());
+    }
+
+    @Test(expected=EOFException.class)
+    public void testMemoryStorageOutside()
+    throws Exception {
+        new MemoryStorage(DATA.length).read(DATA.length - 2,
+                                            ByteBuffer.allocate(4));
+    }
+
+    @Test(expected=EOFException.class)
+    public void testFileStorageOutside()
+    throws Exception {
+        Storage storage = new ChannelStorage(FILES, SIZES, handles());
+        try {
+            storage.read(DATA.length - 2, ByteBuffer.allocate(4));
+        } finally {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package test.core;
+
+import java.io.*;
+import java.util.*;
+
+import torrefactor.core.DataManager;
+import torrefactor.util.Pair;
+
+
+/**
+ * The data of data/test/DataManager/test1 and test2 shared by the tests.
+ */
+class TestData {
+
+    // Content of the two files
+    static final byte[] DATA =
+        "00112233445566\n778899\n".getBytes();
+
+    /**
+     * Returns the two files of 15 and 7 bytes with their sizes.
+     */
+    static List<Pair<File, Long>> files () {
+        List<Pair<File, Long>> files = new ArrayList<Pair<File, Long>>();
+        files.add(new Pair<File, Long>(
+                    new File("data/test/DataManager/test1"), 15L));
+        files.add(new Pair<File, Long>(
+                    new File("data/test/DataManager/test2"), 7L));
+        return files;
+    }
+
+    /**
+     * Pieces of 4 bytes over the two files, the last piece is 2 bytes long
+     * and some pieces span both files.
+     */
+    static DataManager dataManager ()
+    throws IOException {
+        return new DataManager(files(), 4);
+    }
+}
@@ -0,0 +1,84 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.core;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static test.core.TestData.*;
+
+import torrefactor.core.DataManager;
+import torrefactor.core.WriteBuffers;
+
+
+public class WriteBuffersTest {
+
+    public static void main (String[] args) {
+        org.junit.runner.JUnitCore.main("test.core.WriteBuffersTest");
+    }
+
+    @Test public void testCapacity() {
+        WriteBuffers buffers = new WriteBuffers(10);
+        byte[] first = buffers.get(4);
+        byte[] second = buffers.get(4);
+        assertEquals(4, first.length);
+        assertNull(buffers.get(4));
+        assertEquals(8, buffers.size());
+
+        // The buffers given back are reused
+        buffers.release(first);
+        assertSame(first, buffers.get(4));
+        assertEquals(8, buffers.size());
+
+        // The kept buffers of another length are freed to make room
+        buffers.release(first);
+        buffers.release(second);
+        assertEquals(6, buffers.get(6).length);
+        assertEquals(10, buffers.size());
+        assertNull(buffers.get(6));
+    }
+
+    @Test public void testShared()
+    throws Exception {
+        // Room for two pieces of 4 bytes for both torrents
+        WriteBuffers buffers = new WriteBuffers(8);
+        DataManager first = dataManager();
+        DataManager second = dataManager();
+        first.setWriteBuffers(buffers);
+        second.setWriteBuffers(buffers);
+        assertTrue(first.bufferPiece(0));
+        assertTrue(second.bufferPiece(0));
+        assertFalse(first.bufferPiece(1));
+        assertFalse(second.bufferPiece(1));
+        second.dropPiece(0);
+        assertTrue(first.bufferPiece(1));
+        first.close();
+        assertTrue(second.bufferPiece(0));
+        assertTrue(second.bufferPiece(1));
+        second.close();
+    }
+}
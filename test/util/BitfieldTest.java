@@ -0,0 +1,107 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import torrefactor.util.Bitfield;
+
+
+public class BitfieldTest {
+
+    public static void main (String[] strings) {
+        org.junit.runner.JUnitCore.main("test.util.BitfieldTest");
+    }
+
+    @Test
+    public void testSetClear() {
+        Bitfield bitfield = new Bitfield(130);
+        assertTrue(bitfield.set(0));
+        assertTrue(bitfield.set(64));
+        assertTrue(bitfield.set(129));
+        assertFalse(bitfield.set(129));
+        assertEquals(3, bitfield.cardinality());
+        assertTrue(bitfield.get(64));
+        assertFalse(bitfield.get(63));
+
+        assertTrue(bitfield.clear(64));
+        assertFalse(bitfield.clear(64));
+        assertEquals(2, bitfield.cardinality());
+        assertFalse(bitfield.isComplete());
+
+        for (int i = 0; i < 130; i++) bitfield.set(i);
+        assertTrue(bitfield.isComplete());
+    }
+
+    @Test
+    public void testByteArray() {
+        byte[] bytes = new byte[] {(byte) 0x80, (byte) 0x01, (byte) 0xFF};
+        // The spare bits of the last byte are ignored
+        Bitfield bitfield = new Bitfield(bytes, 20);
+        assertTrue(bitfield.get(0));
+        assertFalse(bitfield.get(1));
+        assertTrue(bitfield.get(15));
+        assertTrue(bitfield.get(19));
+        assertEquals(6, bitfield.cardinality());
+        assertArrayEquals(new byte[] {(byte) 0x80, (byte) 0x01, (byte) 0xF0},
+                          bitfield.toByteArray());
+    }
+
+    @Test
+    public void testNextBit() {
+        Bitfield bitfield = new Bitfield(200);
+        bitfield.set(3);
+        bitfield.set(70);
+        bitfield.set(199);
+        assertEquals(3, bitfield.nextSetBit(0));
+        assertEquals(70, bitfield.nextSetBit(4));
+        assertEquals(199, bitfield.nextSetBit(71));
+        assertEquals(-1, bitfield.nextSetBit(200));
+
+        assertEquals(0, bitfield.nextClearBit(0));
+        assertEquals(4, bitfield.nextClearBit(3));
+        for (int i = 0; i < 199; i++) bitfield.set(i);
+        assertEquals(200, bitfield.nextClearBit(0));
+    }
+
+    @Test
+    public void testBitsNotIn() {
+        Bitfield peer = new Bitfield(100);
+        Bitfield own = new Bitfield(100);
+        assertFalse(peer.hasBitsNotIn(own));
+        peer.set(10);
+        peer.set(90);
+        own.set(10);
+        assertTrue(peer.hasBitsNotIn(own));
+        assertEquals(1, peer.countBitsNotIn(own));
+        own.set(90);
+        assertFalse(peer.hasBitsNotIn(own));
+        assertEquals(0, peer.countBitsNotIn(own));
+    }
+}
@@ -0,0 +1,68 @@
+/* 
+ *  This file is part of the Torrefactor project
+ *  Copyright 2011 Guillaume Martres <smarter@ubuntu.com>
+ *  Copyright 2011 Florian Vessaz <florian.vessaz@gmail.com> 
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *      1. Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *      2. Redistributions in binary form must reproduce the above copyright
+ *      notice, this list of conditions and the following disclaimer in the
+ *      documentation and/or other materials provided with the distribution.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import torrefactor.util.BufferPool;
+
+
+public class BufferPoolTest {
+
+    public static void main (String[] strings) {
+        org.junit.runner.JUnitCore.main("test.util.BufferPoolTest");
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] a = pool.get();
+        assertEquals(16, a.length);
+        assertEquals(0, pool.size());
+
+        pool.release(a);
+        assertEquals(1, pool.size());
+        assertSame(a, pool.get());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testReleaseIgnored() {
+        BufferPool pool = new BufferPool(16, 2);
+        pool.release(null);
+        pool.release(new byte[15]);
+        assertEquals(0, pool.size());
+
+        pool.release(pool.get());
+        pool.release(pool.get());
+        pool.release(new byte[16]);
+        pool.release(new byte[16]);
+        assertEquals(2, pool.size());
+    }
+}